@@ -89,5 +89,7 @@ dependencies {
     implementation(project(":library:proto-stub"))
 
     coreLibraryDesugaring("com.android.tools:desugar_jdk_libs:2.1.3")
+
+    testImplementation("junit:junit:4.13.2")
 }
 
@@ -20,6 +20,7 @@
 package io.nekohasekai.sagernet
 
 const val CONNECTION_TEST_URL = "https://www.google.com/generate_204"
+const val SPEED_TEST_URL = "https://speed.cloudflare.com/__down?bytes=25000000"
 
 object Key {
 
@@ -81,6 +82,7 @@ object Key {
     const val TRANSPROXY_PORT = "transproxyPort"
 
     const val CONNECTION_TEST_URL = "connectionTestURL"
+    const val SPEED_TEST_URL = "speedTestURL"
     const val PROBE_URL = "probeUrl"
     const val PROBE_INTERVAL = "probeInterval"
 
@@ -117,6 +119,8 @@ object Key {
     const val PROFILE_STARTED = "profileStarted"
     const val PROFILE_CURRENT = "profileCurrent"
 
+    const val PLUGIN_CACHE = "pluginCache"
+
     const val SERVER_ADDRESS = "serverAddress"
     const val SERVER_PORT = "serverPort"
     const val SERVER_USERNAME = "serverUsername"
@@ -251,6 +255,7 @@ object Key {
     const val GROUP_LANDING_PROXY_OUTBOUND = "groupLandingOutbound"
     const val GROUP_FRONT_PROXY = "groupFrontProxy"
     const val GROUP_LANDING_PROXY = "groupLandingProxy"
+    const val GROUP_HEALTH_CHECK_INTERVAL = "groupHealthCheckInterval"
 
     const val GROUP_SUBSCRIPTION = "groupSubscription"
     const val SUBSCRIPTION_TYPE = "subscriptionType"
@@ -330,6 +335,7 @@ object GroupOrder {
     const val ORIGIN = 0
     const val BY_NAME = 1
     const val BY_DELAY = 2
+    const val BY_SPEED = 3
 }
 
 object Action {
@@ -47,6 +47,7 @@ import io.nekohasekai.sagernet.bg.SagerConnection
 import io.nekohasekai.sagernet.bg.test.DebugInstance
 import io.nekohasekai.sagernet.database.DataStore
 import io.nekohasekai.sagernet.database.SagerDatabase
+import io.nekohasekai.sagernet.fmt.gson.warmUpConfigAdapters
 import io.nekohasekai.sagernet.ktx.Logs
 import io.nekohasekai.sagernet.ktx.app
 import io.nekohasekai.sagernet.ktx.runOnDefaultDispatcher
@@ -92,7 +93,10 @@ class SagerNet : Application(),
 
         if (!isMainProcess) {
             Libcore.setUidDumper(this, Build.VERSION.SDK_INT < Build.VERSION_CODES.Q)
-            if (BuildConfig.DEBUG) {
+            runOnDefaultDispatcher {
+                warmUpConfigAdapters()
+            }
+            if (BuildConfig.DEBUG) runOnDefaultDispatcher {
                 DebugInstance().launch()
             }
         }
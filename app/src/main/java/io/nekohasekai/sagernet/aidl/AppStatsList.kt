@@ -22,7 +22,13 @@ package io.nekohasekai.sagernet.aidl
 import android.os.Parcelable
 import kotlinx.parcelize.Parcelize
 
+/**
+ * Unless [full], [data] only holds the entries changed since the previous list
+ * and [removed] the uids that are gone.
+ */
 @Parcelize
 class AppStatsList(
-    var data: List<AppStats>
+    var data: List<AppStats>,
+    var full: Boolean = true,
+    var removed: IntArray = IntArray(0)
 ) : Parcelable
\ No newline at end of file
@@ -23,6 +23,6 @@ import java.io.Closeable
 
 interface AbstractInstance : Closeable {
 
-    fun launch()
+    suspend fun launch()
 
 }
\ No newline at end of file
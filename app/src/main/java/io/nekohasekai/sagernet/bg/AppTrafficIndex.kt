@@ -0,0 +1,182 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2021 by nekohasekai <contact-sagernet@sekai.icu>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+
+package io.nekohasekai.sagernet.bg
+
+import android.util.SparseArray
+import android.util.SparseIntArray
+import io.nekohasekai.sagernet.aidl.AppStats
+
+/**
+ * Per-uid counters of the last stats tick, stored column-wise so that ranking them
+ * does not touch the parcelables.
+ */
+class AppTrafficIndex {
+
+    companion object {
+        // apps stay in the active list for a while after their last connection closed
+        const val DEACTIVATE_DELAY = 5
+    }
+
+    private val slots = SparseIntArray()
+    private var size = 0
+    private var uids = IntArray(16)
+    private var packageNames = arrayOfNulls<String>(16)
+    private var tcpConnections = IntArray(16)
+    private var udpConnections = IntArray(16)
+    private var tcpConnectionsTotal = IntArray(16)
+    private var udpConnectionsTotal = IntArray(16)
+    private var uplink = LongArray(16)
+    private var downlink = LongArray(16)
+    private var uplinkTotal = LongArray(16)
+    private var downlinkTotal = LongArray(16)
+    private var deactivateAt = IntArray(16)
+
+    private fun ensureCapacity(capacity: Int) {
+        if (capacity <= uids.size) return
+        val newSize = maxOf(capacity, uids.size * 2)
+        uids = uids.copyOf(newSize)
+        packageNames = packageNames.copyOf(newSize)
+        tcpConnections = tcpConnections.copyOf(newSize)
+        udpConnections = udpConnections.copyOf(newSize)
+        tcpConnectionsTotal = tcpConnectionsTotal.copyOf(newSize)
+        udpConnectionsTotal = udpConnectionsTotal.copyOf(newSize)
+        uplink = uplink.copyOf(newSize)
+        downlink = downlink.copyOf(newSize)
+        uplinkTotal = uplinkTotal.copyOf(newSize)
+        downlinkTotal = downlinkTotal.copyOf(newSize)
+        deactivateAt = deactivateAt.copyOf(newSize)
+    }
+
+    @Synchronized
+    fun update(stats: SparseArray<AppStats>) {
+        slots.clear()
+        size = stats.size()
+        ensureCapacity(size)
+        for (i in 0 until size) {
+            val entry = stats.valueAt(i)
+            slots.put(entry.uid, i)
+            uids[i] = entry.uid
+            packageNames[i] = entry.packageName
+            tcpConnections[i] = entry.tcpConnections
+            udpConnections[i] = entry.udpConnections
+            tcpConnectionsTotal[i] = entry.tcpConnectionsTotal
+            udpConnectionsTotal[i] = entry.udpConnectionsTotal
+            uplink[i] = entry.uplink
+            downlink[i] = entry.downlink
+            uplinkTotal[i] = entry.uplinkTotal
+            downlinkTotal[i] = entry.downlinkTotal
+            deactivateAt[i] = entry.deactivateAt
+        }
+    }
+
+    @Synchronized
+    fun clear() {
+        slots.clear()
+        size = 0
+    }
+
+    @Synchronized
+    fun lookup(uid: Int): AppStats? {
+        val slot = slots.get(uid, -1)
+        return if (slot < 0) null else get(slot)
+    }
+
+    /**
+     * The [n] active apps with the highest current rate.
+     */
+    @Synchronized
+    fun topByRate(n: Int): List<AppStats> {
+        val now = (System.currentTimeMillis() / 1000).toInt()
+        return top(n, { deactivateAt[it] == 0 || now - deactivateAt[it] < DEACTIVATE_DELAY }) { a, b ->
+            compareValues(uplink[a] + downlink[a], uplink[b] + downlink[b]).takeIf { it != 0 }
+                ?: compareValues(
+                    tcpConnections[a] + udpConnections[a], tcpConnections[b] + udpConnections[b]
+                ).takeIf { it != 0 }
+                ?: compareValues(packageNames[a], packageNames[b])
+        }
+    }
+
+    /**
+     * The [n] apps with the most traffic in this session.
+     */
+    @Synchronized
+    fun topByTotal(n: Int): List<AppStats> {
+        return top(n, { true }) { a, b ->
+            compareValues(uplinkTotal[a] + downlinkTotal[a], uplinkTotal[b] + downlinkTotal[b]).takeIf { it != 0 }
+                ?: compareValues(
+                    tcpConnectionsTotal[a] + udpConnectionsTotal[a],
+                    tcpConnectionsTotal[b] + udpConnectionsTotal[b]
+                ).takeIf { it != 0 }
+                ?: compareValues(packageNames[a], packageNames[b])
+        }
+    }
+
+    /**
+     * Keeps the best [n] slots in a min-heap, so ranking costs O(size log n).
+     */
+    private fun top(n: Int, filter: (Int) -> Boolean, compare: (Int, Int) -> Int): List<AppStats> {
+        if (n <= 0) return emptyList()
+        val heap = IntArray(minOf(n, size))
+        var count = 0
+        for (slot in 0 until size) {
+            if (!filter(slot)) continue
+            if (count < heap.size) {
+                var i = count++
+                heap[i] = slot
+                while (i > 0) {
+                    val parent = (i - 1) / 2
+                    if (compare(heap[i], heap[parent]) >= 0) break
+                    heap[i] = heap[parent].also { heap[parent] = heap[i] }
+                    i = parent
+                }
+            } else if (compare(slot, heap[0]) > 0) {
+                heap[0] = slot
+                var i = 0
+                while (true) {
+                    val left = 2 * i + 1
+                    val right = left + 1
+                    var smallest = i
+                    if (left < count && compare(heap[left], heap[smallest]) < 0) smallest = left
+                    if (right < count && compare(heap[right], heap[smallest]) < 0) smallest = right
+                    if (smallest == i) break
+                    heap[i] = heap[smallest].also { heap[smallest] = heap[i] }
+                    i = smallest
+                }
+            }
+        }
+        return heap.copyOf(count).sortedWith { a, b -> compare(b, a) }.map { get(it) }
+    }
+
+    private fun get(slot: Int) = AppStats(
+        packageNames[slot]!!,
+        uids[slot],
+        tcpConnections[slot],
+        udpConnections[slot],
+        tcpConnectionsTotal[slot],
+        udpConnectionsTotal[slot],
+        uplink[slot],
+        downlink[slot],
+        uplinkTotal[slot],
+        downlinkTotal[slot],
+        deactivateAt[slot]
+    )
+
+}
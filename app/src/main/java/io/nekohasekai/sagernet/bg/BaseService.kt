@@ -26,6 +26,8 @@ import android.content.Context
 import android.content.Intent
 import android.content.IntentFilter
 import android.os.*
+import android.util.SparseArray
+import androidx.core.util.forEach
 import cn.hutool.json.JSONException
 import io.nekohasekai.sagernet.Action
 import io.nekohasekai.sagernet.BootReceiver
@@ -43,6 +45,7 @@ import io.nekohasekai.sagernet.ktx.*
 import io.nekohasekai.sagernet.plugin.PluginManager
 import io.nekohasekai.sagernet.utils.PackageCache
 import kotlinx.coroutines.*
+import kotlinx.coroutines.channels.Channel
 import kotlinx.coroutines.sync.Mutex
 import kotlinx.coroutines.sync.withLock
 import libcore.AppStats
@@ -73,6 +76,7 @@ class BaseService {
         var state = State.Stopped
         var proxy: ProxyInstance? = null
         var notification: ServiceNotification? = null
+        var healthChecker: HealthChecker? = null
 
         val receiver = broadcastReceiver { _, intent ->
             when (intent.action) {
@@ -107,8 +111,8 @@ class BaseService {
         private val bandwidthListeners = mutableMapOf<IBinder, Long>()  // the binder is the real identifier
         private val statsListeners = mutableMapOf<IBinder, Long>()  // the binder is the real identifier
         override val coroutineContext = Dispatchers.Main.immediate + Job()
-        private var looper: Job? = null
-        private var statsLooper: Job? = null
+        private var poller: Job? = null
+        private val wakeup = Channel<Unit>(Channel.CONFLATED)
 
         override fun getState(): Int = (data?.state ?: State.Idle).ordinal
         override fun getProfileName(): String = data?.proxy?.profile?.displayName() ?: "Idle"
@@ -135,44 +139,106 @@ class BaseService {
             }
         }
 
-        private suspend fun loop() {
-            var lastQueryTime = 0L
+        /**
+         * Each stream is polled at the smallest interval its listeners asked for, doubled on
+         * every tick without traffic up to [Backoff.MAX_BACKOFF] times and reset as soon as there is.
+         */
+        companion object {
+            private const val FULL_STATS_INTERVAL = 20
+        }
+
+        private class Backoff {
+            companion object {
+                const val MAX_BACKOFF = 16L
+            }
+
+            var factor = 1L
+            fun next(interval: Long, active: Boolean): Long {
+                factor = if (active) 1L else (factor * 2).coerceAtMost(MAX_BACKOFF)
+                return interval * factor
+            }
+        }
+
+        private suspend fun poll() {
             val showDirectSpeed = DataStore.showDirectSpeed
+            val statsEnabled = (data?.proxy?.service as? VpnService)?.tun?.trafficStatsEnabled == true
+            val bandwidthBackoff = Backoff()
+            val statsBackoff = Backoff()
+            var bandwidthDue = 0L
+            var statsDue = 0L
             while (true) {
-                val delayMs = bandwidthListeners.values.minOrNull()
-                delay(delayMs ?: return)
-                if (delayMs == 0L) return
-                val queryTime = System.currentTimeMillis()
-                val sinceLastQueryInSeconds = (queryTime - lastQueryTime).toDouble() / 1000L
-                val proxy = data?.proxy ?: return
-                lastQueryTime = queryTime
-                val (statsOut, outs) = proxy.outboundStats()
-                val stats = TrafficStats(
-                    (proxy.uplinkProxy / sinceLastQueryInSeconds).toLong(),
-                    (proxy.downlinkProxy / sinceLastQueryInSeconds).toLong(),
-                    if (showDirectSpeed) (proxy.uplinkDirect() / sinceLastQueryInSeconds).toLong() else 0L,
-                    if (showDirectSpeed) (proxy.downlinkDirect() / sinceLastQueryInSeconds).toLong() else 0L,
-                    statsOut.uplinkTotal,
-                    statsOut.downlinkTotal
+                val bandwidthInterval = bandwidthListeners.values.minOrNull()?.takeIf { it > 0L }
+                val statsInterval = statsListeners.values.minOrNull()?.takeIf { it > 0L && statsEnabled }
+                if (bandwidthInterval == null && statsInterval == null) return
+                val now = SystemClock.elapsedRealtime()
+                if (bandwidthInterval != null && now >= bandwidthDue) {
+                    val active = pollBandwidth(showDirectSpeed) ?: return
+                    bandwidthDue = now + bandwidthBackoff.next(bandwidthInterval, active)
+                }
+                if (statsInterval != null && now >= statsDue) {
+                    statsDue = now + statsBackoff.next(statsInterval, pollStats())
+                }
+                val next = minOf(
+                    if (bandwidthInterval != null) bandwidthDue else Long.MAX_VALUE,
+                    if (statsInterval != null) statsDue else Long.MAX_VALUE
                 )
-                if (data?.state == State.Connected && bandwidthListeners.isNotEmpty()) {
-                    broadcast { item ->
-                        if (bandwidthListeners.contains(item.asBinder())) {
-                            item.trafficUpdated(proxy.profile.id, stats, true)
-                            outs.forEach { (profileId, stats) ->
-                                item.trafficUpdated(
-                                    profileId, TrafficStats(
-                                        txRateDirect = stats.uplinkTotal,
-                                        rxTotal = stats.downlinkTotal
-                                    ), false
-                                )
-                            }
+                val woken = withTimeoutOrNull((next - SystemClock.elapsedRealtime()).coerceAtLeast(1L)) {
+                    wakeup.receive()
+                }
+                if (woken != null) {
+                    // a listener joined, it gets fresh values right away
+                    bandwidthBackoff.factor = 1L
+                    statsBackoff.factor = 1L
+                    bandwidthDue = 0L
+                    statsDue = 0L
+                    bandwidthActive = true
+                }
+            }
+        }
+
+        private var lastBandwidthQuery = 0L
+        private var bandwidthActive = true
+
+        /**
+         * Returns whether any counter moved, or null if the proxy is gone.
+         */
+        private suspend fun pollBandwidth(showDirectSpeed: Boolean): Boolean? {
+            val proxy = data?.proxy ?: return null
+            val queryTime = SystemClock.elapsedRealtime()
+            val sinceLastQueryInSeconds = (queryTime - lastBandwidthQuery).toDouble() / 1000L
+            lastBandwidthQuery = queryTime
+            val statsOut = proxy.outboundStats()
+            val outs = proxy.statsOutbounds
+            val uplinkDirect = if (showDirectSpeed) proxy.uplinkDirect() else 0L
+            val downlinkDirect = if (showDirectSpeed) proxy.downlinkDirect() else 0L
+            val active = proxy.uplinkProxy + proxy.downlinkProxy + uplinkDirect + downlinkDirect != 0L
+            // the first idle tick is still sent, so that listeners drop to zero
+            if (!active && !bandwidthActive) return false
+            bandwidthActive = active
+            val stats = TrafficStats(
+                (proxy.uplinkProxy / sinceLastQueryInSeconds).toLong(),
+                (proxy.downlinkProxy / sinceLastQueryInSeconds).toLong(),
+                (uplinkDirect / sinceLastQueryInSeconds).toLong(),
+                (downlinkDirect / sinceLastQueryInSeconds).toLong(),
+                statsOut.uplinkTotal,
+                statsOut.downlinkTotal
+            )
+            if (data?.state == State.Connected && bandwidthListeners.isNotEmpty()) {
+                broadcast { item ->
+                    if (bandwidthListeners.contains(item.asBinder())) {
+                        item.trafficUpdated(proxy.profile.id, stats, true)
+                        outs.forEach { profileId, stats ->
+                            item.trafficUpdated(
+                                profileId, TrafficStats(
+                                    txRateDirect = stats.uplinkTotal,
+                                    rxTotal = stats.downlinkTotal
+                                ), false
+                            )
                         }
                     }
                 }
-
             }
-
+            return active
         }
 
         val appStats = ArrayList<AppStats>()
@@ -180,53 +246,144 @@ class BaseService {
             appStats.add(t)
         }
 
-        private suspend fun loopStats() {
-            var lastQueryTime = 0L
-            var tun = (data?.proxy?.service as? VpnService)?.tun ?: return
-            if (!tun.trafficStatsEnabled) return
+        private var lastStatsQuery = 0L
 
-            while (true) {
-                val delayMs = statsListeners.values.minOrNull()
-                if (delayMs == 0L) return
-                val queryTime = System.currentTimeMillis()
-                val sinceLastQueryInSeconds = ((queryTime - lastQueryTime).toDouble() / 1000).toLong()
-                lastQueryTime = queryTime
-
-                appStats.clear()
-                tun = (data?.proxy?.service as? VpnService)?.tun ?: return
-                tun.readAppTraffics(this)
-
-                val statsList = AppStatsList(appStats.map {
-                    val uid = if (it.uid >= 10000) it.uid else 1000
+        // what listeners were sent last, keyed by uid
+        private val appStatsSent = SparseArray<AidlAppStats>()
+        private val appStatsTick = SparseArray<AidlAppStats>()
+        private val appStatsPool = ArrayDeque<AidlAppStats>()
+        private var statsFull = true
+
+        // listeners that have not been sent a full list yet, deltas are useless to them
+        private val statsPendingFull = HashSet<IBinder>()
+
+        // listeners that only show the busiest apps, they get those instead of every app
+        private val statsLimits = mutableMapOf<IBinder, Int>()
+        private val appTraffic = AppTrafficIndex()
+        private var statsSinceFull = 0
+
+        /**
+         * Sends the entries changed since the last tick, and a full list every
+         * [FULL_STATS_INTERVAL] lists. A listener that just joined gets a full list first.
+         * Listeners with a limit get the top apps by rate, ranked on each tick they are sent.
+         */
+        private suspend fun pollStats(): Boolean {
+            val tun = (data?.proxy?.service as? VpnService)?.tun ?: return false
+            val queryTime = SystemClock.elapsedRealtime()
+            val sinceLastQueryInSeconds = (queryTime - lastStatsQuery).toDouble() / 1000
+            lastStatsQuery = queryTime
+
+            appStats.clear()
+            tun.readAppTraffics(this)
+
+            // system uids are shown as one entry
+            for (entry in appStats) {
+                val uid = if (entry.uid >= 10000) entry.uid else 1000
+                val uplink = (entry.uplink / sinceLastQueryInSeconds).toLong()
+                val downlink = (entry.downlink / sinceLastQueryInSeconds).toLong()
+                val stats = appStatsTick[uid]
+                if (stats == null) {
                     val packageName = if (uid != 1000) {
-                        PackageCache.uidMap[it.uid]?.iterator()?.next() ?: "android"
+                        PackageCache.uidMap[entry.uid]?.iterator()?.next() ?: "android"
                     } else {
                         "android"
                     }
-                    AidlAppStats(
-                        packageName,
-                        uid,
-                        it.tcpConn,
-                        it.udpConn,
-                        it.tcpConnTotal,
-                        it.udpConnTotal,
-                        it.uplink / sinceLastQueryInSeconds,
-                        it.downlink / sinceLastQueryInSeconds,
-                        it.uplinkTotal,
-                        it.downlinkTotal,
-                        it.deactivateAt
+                    appStatsTick.put(uid, (appStatsPool.removeFirstOrNull() ?: AidlAppStats(
+                        "", 0, 0, 0, 0, 0, 0L, 0L, 0L, 0L, 0
+                    )).apply {
+                        this.packageName = packageName
+                        this.uid = uid
+                        tcpConnections = entry.tcpConn
+                        udpConnections = entry.udpConn
+                        tcpConnectionsTotal = entry.tcpConnTotal
+                        udpConnectionsTotal = entry.udpConnTotal
+                        this.uplink = uplink
+                        this.downlink = downlink
+                        uplinkTotal = entry.uplinkTotal
+                        downlinkTotal = entry.downlinkTotal
+                        deactivateAt = entry.deactivateAt
+                    })
+                } else stats.apply {
+                    tcpConnections += entry.tcpConn
+                    udpConnections += entry.udpConn
+                    tcpConnectionsTotal += entry.tcpConnTotal
+                    udpConnectionsTotal += entry.udpConnTotal
+                    this.uplink += uplink
+                    this.downlink += downlink
+                    uplinkTotal += entry.uplinkTotal
+                    downlinkTotal += entry.downlinkTotal
+                    deactivateAt = if (deactivateAt == 0 || entry.deactivateAt == 0) 0 else maxOf(
+                        deactivateAt, entry.deactivateAt
                     )
-                })
-                if (data?.state == State.Connected && statsListeners.isNotEmpty()) {
-                    broadcast { item ->
-                        if (statsListeners.contains(item.asBinder())) {
-                            item.statsUpdated(statsList)
-                        }
+                }
+            }
+
+            val changed = ArrayList<AidlAppStats>()
+            for (i in 0 until appStatsTick.size()) {
+                val stats = appStatsTick.valueAt(i)
+                if (appStatsSent[stats.uid] != stats) {
+                    val copy = stats.copy()
+                    appStatsSent.put(stats.uid, copy)
+                    changed.add(copy)
+                }
+            }
+            var removed = IntArray(0)
+            for (i in appStatsSent.size() - 1 downTo 0) {
+                val uid = appStatsSent.keyAt(i)
+                if (appStatsTick.indexOfKey(uid) < 0) {
+                    removed += uid
+                    appStatsSent.removeAt(i)
+                }
+            }
+            appTraffic.update(appStatsTick)
+            for (i in 0 until appStatsTick.size()) appStatsPool.add(appStatsTick.valueAt(i))
+            appStatsTick.clear()
+
+            val active = changed.isNotEmpty() || removed.isNotEmpty()
+            val full = statsFull || ++statsSinceFull >= FULL_STATS_INTERVAL
+            if (!active && !full && statsPendingFull.isEmpty()) return false
+            val fullList by lazy { AppStatsList(List(appStatsSent.size()) { appStatsSent.valueAt(it) }) }
+            val statsList by lazy { if (full) fullList else AppStatsList(changed, false, removed) }
+            val topLists = SparseArray<AppStatsList>()
+            if (full) {
+                statsFull = false
+                statsSinceFull = 0
+            }
+            if (data?.state == State.Connected && statsListeners.isNotEmpty()) {
+                broadcast { item ->
+                    val binder = item.asBinder()
+                    if (!statsListeners.contains(binder)) return@broadcast
+                    val pending = statsPendingFull.remove(binder)
+                    val limit = statsLimits[binder]
+                    if (limit != null) {
+                        if (pending || active || full) item.statsUpdated(
+                            topLists[limit] ?: AppStatsList(appTraffic.topByRate(limit)).also {
+                                topLists.put(limit, it)
+                            }
+                        )
+                    } else if (pending) {
+                        item.statsUpdated(fullList)
+                    } else if (active || full) {
+                        item.statsUpdated(statsList)
                     }
                 }
-                delay(delayMs ?: return)
             }
+            return active
+        }
+
+        private fun startPolling() {
+            if (bandwidthListeners.isEmpty() && statsListeners.isEmpty()) return
+            wakeup.trySend(Unit)
+            if (poller == null) poller = launch {
+                poll()
+                poller = null
+            }
+        }
 
+        private fun stopPolling() {
+            if (bandwidthListeners.isNotEmpty() || statsListeners.isNotEmpty()) return
+            poller?.cancel()
+            poller = null
         }
 
         override fun startListeningForBandwidth(
@@ -234,16 +391,8 @@ class BaseService {
             timeout: Long,
         ) {
             launch {
-                if (bandwidthListeners.isEmpty() and (bandwidthListeners.put(
-                        cb.asBinder(), timeout
-                    ) == null)
-                ) {
-                    check(looper == null)
-                    looper = launch {
-                        loop()
-                        looper = null
-                    }
-                }
+                bandwidthListeners[cb.asBinder()] = timeout
+                startPolling()
                 if (data?.state != State.Connected) return@launch
                 val data = data
                 data?.proxy ?: return@launch
@@ -254,10 +403,7 @@ class BaseService {
 
         override fun stopListeningForBandwidth(cb: ISagerNetServiceCallback) {
             launch {
-                if (bandwidthListeners.remove(cb.asBinder()) != null && bandwidthListeners.isEmpty() && looper != null) {
-                    looper!!.cancel()
-                    looper = null
-                }
+                if (bandwidthListeners.remove(cb.asBinder()) != null) stopPolling()
             }
         }
 
@@ -295,43 +441,24 @@ class BaseService {
             }
         }
 
-        override fun startListeningForStats(cb: ISagerNetServiceCallback, timeout: Long) {
+        override fun startListeningForStats(cb: ISagerNetServiceCallback, timeout: Long, limit: Int) {
             launch {
-                if (statsListeners.isEmpty() and (statsListeners.put(
-                        cb.asBinder(), timeout
-                    ) == null)
-                ) {
-                    check(statsLooper == null)
-                    statsLooper = launch {
-                        loopStats()
-                        statsLooper = null
-                    }
-                }
+                statsListeners[cb.asBinder()] = timeout
+                if (limit > 0) statsLimits[cb.asBinder()] = limit else statsLimits.remove(cb.asBinder())
+                statsPendingFull.add(cb.asBinder())
+                startPolling()
             }
         }
 
         fun checkLoop() {
-            if (bandwidthListeners.isNotEmpty() && looper == null) {
-                looper = launch {
-                    loop()
-                    looper = null
-                }
-            }
-            if (statsListeners.isNotEmpty() && statsLooper == null) {
-                statsLooper = launch {
-                    loopStats()
-                    statsListeners.clear()
-                    statsLooper = null
-                }
-            }
+            startPolling()
         }
 
         override fun stopListeningForStats(cb: ISagerNetServiceCallback) {
             launch {
-                if (statsListeners.remove(cb.asBinder()) != null && statsListeners.isEmpty() && statsLooper != null) {
-                    statsLooper!!.cancel()
-                    statsLooper = null
-                }
+                statsPendingFull.remove(cb.asBinder())
+                statsLimits.remove(cb.asBinder())
+                if (statsListeners.remove(cb.asBinder()) != null) stopPolling()
             }
         }
 
@@ -339,7 +466,9 @@ class BaseService {
             runOnDefaultDispatcher {
                 SagerDatabase.statsDao.deleteAll()
                 (data?.proxy?.service as? VpnService)?.tun?.resetAppTraffics()
+                appTraffic.clear()
                 val empty = AppStatsList(emptyList())
+                launch { statsFull = true }
                 broadcast { item ->
                     if (statsListeners.contains(item.asBinder())) {
                         item.statsUpdated(empty)
@@ -372,6 +501,12 @@ class BaseService {
             Libcore.updateSystemRoots(useSystem)
         }
 
+        override fun topByRate(n: Int) = AppStatsList(appTraffic.topByRate(n))
+
+        override fun topByTotal(n: Int) = AppStatsList(appTraffic.topByTotal(n))
+
+        override fun lookup(uid: Int): AidlAppStats? = appTraffic.lookup(uid)
+
         override fun close() {
             callbacks.kill()
             cancel()
@@ -417,6 +552,8 @@ class BaseService {
 
         fun stopRunner(restart: Boolean = false, msg: String? = null, keepState: Boolean = true) {
             if (data.state == State.Stopping) return
+            data.healthChecker?.stop()
+            data.healthChecker = null
             data.notification?.destroy()
             data.notification = null
             this as Service
@@ -512,6 +649,9 @@ class BaseService {
                     startProcesses()
                     data.changeState(State.Connected)
                     data.binder.checkLoop()
+                    data.healthChecker = HealthChecker { fd ->
+                        (this@Interface as? VpnService)?.protect(fd)
+                    }.apply { start() }
 
                     for ((type, routeName) in proxy.config.alerts) {
                         data.binder.broadcast {
@@ -26,17 +26,14 @@ import android.os.SystemClock
 import android.system.ErrnoException
 import android.system.Os
 import android.system.OsConstants
-import android.util.Log
+import androidx.annotation.AnyThread
 import androidx.annotation.MainThread
 import io.nekohasekai.sagernet.SagerNet
 import io.nekohasekai.sagernet.ktx.Logs
 import io.nekohasekai.sagernet.utils.Commandline
 import kotlinx.coroutines.*
-import kotlinx.coroutines.channels.Channel
 import java.io.File
 import java.io.IOException
-import java.io.InputStream
-import kotlin.concurrent.thread
 
 class GuardedProcessPool(private val onFatal: suspend (IOException) -> Unit) : CoroutineScope {
     companion object {
@@ -48,41 +45,35 @@ class GuardedProcessPool(private val onFatal: suspend (IOException) -> Unit) : C
 
     private inner class Guard(private val cmd: List<String>, private val env: Map<String, String> = mapOf()) {
         private lateinit var process: Process
+        private lateinit var output: ProcessLogPump.Source
+        private val cmdName = File(cmd.first()).nameWithoutExtension
 
-        private fun streamLogger(input: InputStream, logger: (String) -> Unit) = try {
-            input.bufferedReader().forEachLine(logger)
-        } catch (_: IOException) {
-        }    // ignore
+        val exitCode get() = output.exitCode
 
         fun start() {
             process = ProcessBuilder(cmd).directory(SagerNet.deviceStorage.noBackupFilesDir).apply {
                 environment().putAll(env)
             }.start()
+            output = ProcessLogPump.register(cmdName, process)
+        }
+
+        private fun lastOutput() = output.tail().takeLast(16).joinToString("\n").let {
+            if (it.isBlank()) "" else ", last output:\n$it"
         }
 
         @DelicateCoroutinesApi
         suspend fun looper(onRestartCallback: (suspend () -> Unit)?) {
             var running = true
-            val cmdName = File(cmd.first()).nameWithoutExtension
-            val exitChannel = Channel<Int>()
             try {
                 while (true) {
-                    thread(name = "stderr-$cmdName") {
-                        streamLogger(process.errorStream) { Log.e(cmdName, it) }
-                    }
-                    thread(name = "stdout-$cmdName") {
-                        streamLogger(process.inputStream) { Log.i(cmdName, it) }
-                        // this thread also acts as a daemon thread for waitFor
-                        runBlocking { exitChannel.send(process.waitFor()) }
-                    }
                     val startTime = SystemClock.elapsedRealtime()
-                    val exitCode = exitChannel.receive()
+                    val exitCode = output.exitCode.await()
                     running = false
                     when {
                         SystemClock.elapsedRealtime() - startTime < 1000 -> throw IOException(
-                            "$cmdName exits too fast (exit code: $exitCode)")
+                            "$cmdName exits too fast (exit code: $exitCode)" + lastOutput())
                         exitCode == 128 + OsConstants.SIGKILL -> Logs.w("$cmdName was killed")
-                        else -> Logs.w(IOException("$cmdName unexpectedly exits with code $exitCode"))
+                        else -> Logs.w(IOException("$cmdName unexpectedly exits with code $exitCode" + lastOutput()))
                     }
                     Logs.i("restart process: ${Commandline.toString(cmd)} (last exit code: $exitCode)")
                     start()
@@ -102,14 +93,14 @@ class GuardedProcessPool(private val onFatal: suspend (IOException) -> Unit) : C
                         } catch (e: ReflectiveOperationException) {
                             Logs.w(e)
                         }
-                        if (withTimeoutOrNull(500) { exitChannel.receive() } != null) return@withContext
+                        if (withTimeoutOrNull(500) { output.exitCode.await() } != null) return@withContext
                     }
                     process.destroy()                       // kill the process
                     if (Build.VERSION.SDK_INT >= 26) {
-                        if (withTimeoutOrNull(1000) { exitChannel.receive() } != null) return@withContext
+                        if (withTimeoutOrNull(1000) { output.exitCode.await() } != null) return@withContext
                         process.destroyForcibly()           // Force to kill the process if it's still alive
                     }
-                    exitChannel.receive()
+                    output.exitCode.await()
                 }                                           // otherwise process already exited, nothing to be done
             }
         }
@@ -117,12 +108,16 @@ class GuardedProcessPool(private val onFatal: suspend (IOException) -> Unit) : C
 
     override val coroutineContext = Dispatchers.Main.immediate + Job()
 
-    @MainThread
-    fun start(cmd: List<String>,env: Map<String,String> = mapOf(), onRestartCallback: (suspend () -> Unit)? = null) {
+    /**
+     * Returns the exit code of the first run, later restarts are up to the guard.
+     */
+    @AnyThread
+    fun start(cmd: List<String>,env: Map<String,String> = mapOf(), onRestartCallback: (suspend () -> Unit)? = null): Deferred<Int> {
         Logs.i("start process: ${Commandline.toString(cmd)}")
-        Guard(cmd, env).apply {
+        return Guard(cmd, env).run {
             start() // if start fails, IOException will be thrown directly
             launch { looper(onRestartCallback) }
+            exitCode
         }
     }
 
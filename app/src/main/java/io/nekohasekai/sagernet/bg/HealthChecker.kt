@@ -0,0 +1,122 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2021 by nekohasekai <contact-sagernet@sekai.icu>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+
+package io.nekohasekai.sagernet.bg
+
+import io.nekohasekai.sagernet.bg.test.TcpPinger
+import io.nekohasekai.sagernet.bg.test.TestScheduler
+import io.nekohasekai.sagernet.database.DataStore
+import io.nekohasekai.sagernet.database.ProbeStatsEntity
+import io.nekohasekai.sagernet.database.ProxyEntity
+import io.nekohasekai.sagernet.database.SagerDatabase
+import io.nekohasekai.sagernet.ktx.Logs
+import io.nekohasekai.sagernet.ktx.runOnIoDispatcher
+import io.nekohasekai.sagernet.utils.HostResolver
+import kotlinx.coroutines.*
+import java.net.InetSocketAddress
+import java.util.concurrent.ConcurrentHashMap
+import kotlin.random.Random
+
+/**
+ * Periodically TCP pings the profiles of the selected group while the service runs,
+ * if the group has a health check interval, and keeps [ProbeStatsEntity] of them.
+ */
+class HealthChecker(private val protect: (Int) -> Unit) {
+
+    companion object {
+        private const val IDLE_DELAY = 60_000L
+        private const val TIMEOUT = 5000
+    }
+
+    private var job: Job? = null
+
+    fun start() {
+        if (job != null) return
+        job = runOnIoDispatcher {
+            // do not probe together with the connection being set up
+            delay(Random.nextLong(5_000L, 30_000L))
+            while (isActive) {
+                val interval = try {
+                    checkOnce()
+                } catch (e: CancellationException) {
+                    throw e
+                } catch (e: Exception) {
+                    Logs.w(e)
+                    0L
+                }
+                if (interval <= 0L) {
+                    delay(IDLE_DELAY)
+                } else {
+                    // spread rounds of different devices and groups
+                    delay((interval * Random.nextDouble(0.8, 1.2)).toLong())
+                }
+            }
+        }
+    }
+
+    fun stop() {
+        job?.cancel()
+        job = null
+    }
+
+    /**
+     * Returns the interval to the next round, or 0 if the checks are disabled.
+     */
+    private suspend fun checkOnce(): Long {
+        val groupId = DataStore.selectedGroup.takeIf { it > 0L }
+            ?: SagerDatabase.proxyDao.getById(DataStore.startedProfile)?.groupId
+            ?: return 0L
+        val group = SagerDatabase.groupDao.getById(groupId) ?: return 0L
+        if (group.healthCheckInterval <= 0) return 0L
+
+        val profiles = SagerDatabase.proxyDao.getByGroup(groupId).filter {
+            it.requireBean().canTCPing()
+        }
+        val stats = ConcurrentHashMap<Long, ProbeStatsEntity>()
+        SagerDatabase.probeStatsDao.getByGroup(groupId).associateByTo(stats) { it.profileId }
+
+        val pinger = TcpPinger(protect)
+        try {
+            TestScheduler<ProxyEntity>(
+                { it.requireBean().serverAddress }, initialConcurrency = 4, maxConcurrency = 16
+            ).run(profiles) { profile ->
+                val bean = profile.requireBean()
+                val rtt = try {
+                    val address = HostResolver.resolve(bean.serverAddress).first()
+                    pinger.ping(InetSocketAddress(address, bean.serverPort), TIMEOUT)
+                } catch (e: CancellationException) {
+                    throw e
+                } catch (e: Exception) {
+                    -1
+                }
+                stats.getOrPut(profile.id) { ProbeStatsEntity(profile.id) }.add(rtt)
+                if (rtt >= 0) rtt.toLong() else TestScheduler.TIMEOUT
+            }
+        } finally {
+            pinger.close()
+        }
+
+        SagerDatabase.probeStatsDao.upsert(stats.values.toList())
+        SagerDatabase.probeStatsDao.deleteOrphans()
+        Logs.d("Health checked ${profiles.size} profiles of group ${group.displayName()}")
+        return group.healthCheckInterval * 60_000L
+    }
+
+}
@@ -0,0 +1,258 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2021 by nekohasekai <contact-sagernet@sekai.icu>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+
+package io.nekohasekai.sagernet.bg
+
+import android.os.SystemClock
+import android.system.ErrnoException
+import android.system.Os
+import android.system.OsConstants
+import android.system.StructPollfd
+import android.util.Log
+import io.nekohasekai.sagernet.ktx.Logs
+import kotlinx.coroutines.CompletableDeferred
+import java.io.ByteArrayOutputStream
+import java.io.FileDescriptor
+import java.io.FileInputStream
+import java.io.FilterInputStream
+import java.io.IOException
+import java.io.InputStream
+import kotlin.concurrent.thread
+
+/**
+ * Reads the output of all plugin processes on one thread, and reports their exit codes
+ * once [Process.waitFor] returns and the output left in the pipes is read.
+ */
+object ProcessLogPump {
+
+    const val TAIL_LINES = 64
+    const val MAX_LINE = 4096
+
+    // per process, lines beyond that only go to the tail
+    const val LINES_PER_SECOND = 50.0
+    const val LINES_BURST = 200.0
+
+    // how long the exit waits for a fallback reader to reach the end of its stream
+    private const val READER_JOIN_TIMEOUT = 1000L
+
+    class Source internal constructor(val name: String, internal val process: Process) {
+        val exitCode = CompletableDeferred<Int>()
+
+        private val tail = arrayOfNulls<String>(TAIL_LINES)
+        private var tailNext = 0
+        private var tailCount = 0
+
+        private var tokens = LINES_BURST
+        private var lastRefill = SystemClock.elapsedRealtime()
+        private var suppressed = 0
+
+        internal val pipes = ArrayList<Pipe>()
+        internal val readers = ArrayList<Thread>()
+        internal var exitValue = 0
+
+        fun tail(): List<String> = synchronized(tail) {
+            List(tailCount) { tail[(tailNext - tailCount + it + TAIL_LINES) % TAIL_LINES]!! }
+        }
+
+        internal fun emit(priority: Int, line: String) {
+            synchronized(tail) {
+                tail[tailNext] = line
+                tailNext = (tailNext + 1) % TAIL_LINES
+                if (tailCount < TAIL_LINES) tailCount++
+
+                val now = SystemClock.elapsedRealtime()
+                tokens = minOf(LINES_BURST, tokens + (now - lastRefill) * LINES_PER_SECOND / 1000)
+                lastRefill = now
+                if (tokens < 1) {
+                    suppressed++
+                    return
+                }
+                tokens--
+                if (suppressed > 0) {
+                    Log.w(name, "$suppressed lines suppressed")
+                    suppressed = 0
+                }
+            }
+            Log.println(priority, name, line)
+        }
+    }
+
+    internal class Pipe(val source: Source, val stream: InputStream, val fd: FileDescriptor, val priority: Int) {
+        private val partial = ByteArrayOutputStream()
+        var closed = false
+
+        fun feed(buffer: ByteArray, length: Int) {
+            var start = 0
+            for (i in 0 until length) {
+                if (buffer[i] == '\n'.code.toByte()) {
+                    partial.write(buffer, start, i - start)
+                    flush()
+                    start = i + 1
+                }
+            }
+            partial.write(buffer, start, length - start)
+            if (partial.size() >= MAX_LINE) flush()
+        }
+
+        fun flush() {
+            if (partial.size() > 0) source.emit(priority, partial.toString().trimEnd('\r'))
+            partial.reset()
+        }
+
+        fun close() {
+            flush()
+            closed = true
+            try {
+                stream.close()
+            } catch (_: IOException) {
+            }
+        }
+    }
+
+    private val pending = ArrayList<Source>()
+    private val exited = ArrayList<Source>()
+    private val wakeRead: FileDescriptor
+    private val wakeWrite: FileDescriptor
+
+    init {
+        val wake = Os.pipe()
+        wakeRead = wake[0]
+        wakeWrite = wake[1]
+        thread(name = "ProcessLogPump", isDaemon = true) { pump() }
+    }
+
+    private val filterIn by lazy {
+        FilterInputStream::class.java.getDeclaredField("in").apply { isAccessible = true }
+    }
+
+    private fun fdOf(stream: InputStream): FileDescriptor? {
+        var current = stream
+        while (true) {
+            current = when (current) {
+                is FileInputStream -> return current.fd
+                is FilterInputStream -> try {
+                    filterIn.get(current) as? InputStream ?: return null
+                } catch (e: ReflectiveOperationException) {
+                    return null
+                }
+                else -> return null
+            }
+        }
+    }
+
+    fun register(name: String, process: Process): Source {
+        val source = Source(name, process)
+        for ((stream, priority) in listOf(process.errorStream to Log.ERROR, process.inputStream to Log.INFO)) {
+            val fd = fdOf(stream)
+            if (fd != null) {
+                source.pipes.add(Pipe(source, stream, fd, priority))
+            } else source.readers.add(thread(name = "$name-log", isDaemon = true) {
+                // not a plain pipe, fall back to a blocking reader
+                try {
+                    stream.bufferedReader().forEachLine { source.emit(priority, it) }
+                } catch (_: IOException) {
+                }
+            })
+        }
+        synchronized(pending) { pending.add(source) }
+        wake()
+        thread(name = "$name-wait", isDaemon = true) {
+            source.exitValue = process.waitFor()
+            for (reader in source.readers) reader.join(READER_JOIN_TIMEOUT)
+            synchronized(pending) { exited.add(source) }
+            wake()
+        }
+        return source
+    }
+
+    private fun wake() {
+        try {
+            Os.write(wakeWrite, byteArrayOf(0), 0, 1)
+        } catch (e: ErrnoException) {
+            Logs.w(e)
+        }
+    }
+
+    private fun pump() {
+        val sources = ArrayList<Source>()
+        val buffer = ByteArray(8192)
+        while (true) {
+            val done = synchronized(pending) {
+                sources.addAll(pending)
+                pending.clear()
+                exited.toList().also { exited.clear() }
+            }
+            // what the process wrote before exiting is still in the pipes
+            for (source in done) {
+                for (pipe in source.pipes) drain(pipe, buffer)
+                sources.remove(source)
+                source.exitCode.complete(source.exitValue)
+            }
+            val open = sources.flatMap { source -> source.pipes.filter { !it.closed } }
+            val fds = Array(open.size + 1) { i ->
+                StructPollfd().apply {
+                    fd = if (i == 0) wakeRead else open[i - 1].fd
+                    events = OsConstants.POLLIN.toShort()
+                }
+            }
+            try {
+                Os.poll(fds, -1)
+            } catch (e: ErrnoException) {
+                if (e.errno != OsConstants.EINTR) Logs.w(e)
+                continue
+            }
+            if (fds[0].revents.toInt() != 0) Os.read(wakeRead, buffer, 0, buffer.size)
+            for (i in open.indices) {
+                if (fds[i + 1].revents.toInt() == 0) continue
+                read(open[i], buffer)
+            }
+        }
+    }
+
+    /**
+     * Reads what is left through the stream itself, without blocking on a pipe
+     * that a child of the process may still hold open.
+     */
+    private fun drain(pipe: Pipe, buffer: ByteArray) {
+        if (pipe.closed) return
+        try {
+            while (true) {
+                val available = pipe.stream.available()
+                if (available <= 0) break
+                val length = pipe.stream.read(buffer, 0, minOf(buffer.size, available))
+                if (length <= 0) break
+                pipe.feed(buffer, length)
+            }
+        } catch (_: IOException) {
+        }
+        pipe.close()
+    }
+
+    private fun read(pipe: Pipe, buffer: ByteArray) {
+        val length = try {
+            Os.read(pipe.fd, buffer, 0, buffer.size)
+        } catch (e: ErrnoException) {
+            if (e.errno == OsConstants.EAGAIN || e.errno == OsConstants.EINTR) return
+            -1
+        }
+        if (length > 0) pipe.feed(buffer, length) else pipe.close()
+    }
+
+}
@@ -48,7 +48,10 @@ class SagerConnection(private var listenForDeath: Boolean = false) : ServiceConn
     interface Callback {
         fun stateChanged(state: BaseService.State, profileName: String?, msg: String?)
         fun trafficUpdated(profileId: Long, stats: TrafficStats, isCurrent: Boolean) {}
-        fun statsUpdated(stats: List<AppStats>) {}
+        /**
+         * Unless [AppStatsList.full], [stats] only holds the changes since the previous call.
+         */
+        fun statsUpdated(stats: AppStatsList) {}
         fun observatoryResultsUpdated(groupId: Long) {}
 
         fun profilePersisted(profileId: Long) {}
@@ -98,7 +101,9 @@ class SagerConnection(private var listenForDeath: Boolean = false) : ServiceConn
 
         override fun statsUpdated(statsList: AppStatsList) {
             val callback = callback ?: return
-            callback.statsUpdated(statsList.data)
+            // a delta sent before our first full list can not be applied
+            if (statsList.full) statsSynced = true else if (!statsSynced) return
+            callback.statsUpdated(statsList)
         }
 
         override fun routeAlert(type: Int, routeName: String) {
@@ -118,6 +123,9 @@ class SagerConnection(private var listenForDeath: Boolean = false) : ServiceConn
 
     private var binder: IBinder? = null
 
+    @Volatile
+    private var statsSynced = false
+
     var bandwidthTimeout = 0L
         set(value) {
             try {
@@ -130,11 +138,22 @@ class SagerConnection(private var listenForDeath: Boolean = false) : ServiceConn
     var trafficTimeout = 0L
         set(value) {
             try {
-                if (value > 0) service?.startListeningForStats(serviceCallback, value)
+                if (value > 0) service?.startListeningForStats(serviceCallback, value, trafficLimit)
                 else service?.stopListeningForStats(serviceCallback)
             } catch (_: RemoteException) {
             }
+            statsSynced = false
+            field = value
+        }
+
+    /**
+     * When positive, only the top apps by rate are sent, each time as a full list.
+     */
+    var trafficLimit = 0
+        set(value) {
+            if (field == value) return
             field = value
+            if (trafficTimeout > 0) trafficTimeout = trafficTimeout
         }
     var service: ISagerNetService? = null
 
@@ -150,8 +169,9 @@ class SagerConnection(private var listenForDeath: Boolean = false) : ServiceConn
             if (bandwidthTimeout > 0) service.startListeningForBandwidth(
                 serviceCallback, bandwidthTimeout
             )
+            statsSynced = false
             if (trafficTimeout > 0) service.startListeningForStats(
-                serviceCallback, trafficTimeout
+                serviceCallback, trafficTimeout, trafficLimit
             )
         } catch (e: RemoteException) {
             e.printStackTrace()
@@ -21,7 +21,6 @@
 
 package io.nekohasekai.sagernet.bg
 
-import android.Manifest
 import android.app.Service
 import android.content.Intent
 import android.content.pm.PackageManager
@@ -207,15 +206,8 @@ class VpnService : BaseVpnService(),
             var bypass = DataStore.bypass
             val individual = mutableSetOf<String>()
             val allApps by lazy {
-                packageManager.getInstalledPackages(PackageManager.GET_PERMISSIONS).filter {
-                    when (it.packageName) {
-                        packageName -> false
-                        "android" -> true
-                        else -> it.requestedPermissions?.contains(Manifest.permission.INTERNET) == true
-                    }
-                }.map {
-                    it.packageName
-                }
+                PackageCache.awaitLoadSync()
+                PackageCache.installedPackages.keys.filter { it != packageName }
             }
             if (proxyApps) {
                 individual.addAll(DataStore.individual.split('\n').filter { it.isNotBlank() })
@@ -0,0 +1,121 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2021 by nekohasekai <contact-sagernet@sekai.icu>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+
+package io.nekohasekai.sagernet.bg.proto
+
+import com.v2ray.core.app.observatory.OutboundStatus
+import io.nekohasekai.sagernet.bg.BaseService
+import io.nekohasekai.sagernet.database.ProxyEntity
+import io.nekohasekai.sagernet.database.SagerDatabase
+import io.nekohasekai.sagernet.ktx.Logs
+import io.nekohasekai.sagernet.ktx.runOnDefaultDispatcher
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.isActive
+
+/**
+ * Keeps the observatory results of the observed profiles in memory, writes the changed
+ * ones in batches and notifies each touched group once per [FLUSH_INTERVAL].
+ */
+class ObservatoryAggregator(
+    private val service: BaseService.Interface,
+    observatoryTags: Set<String>,
+    known: Collection<ProxyEntity>,
+) {
+
+    companion object {
+        const val FLUSH_INTERVAL = 2000L
+
+        fun profileId(tag: String) = tag.substringAfter("global-").toLongOrNull()
+    }
+
+    private val profiles = HashMap<Long, ProxyEntity>()
+    private val dirty = LinkedHashSet<Long>()
+    private var ticker: Job? = null
+
+    init {
+        known.associateByTo(profiles) { it.id }
+        val missing = observatoryTags.mapNotNull { profileId(it) }.filter { it !in profiles }
+        if (missing.isNotEmpty()) {
+            SagerDatabase.proxyDao.getEntities(missing).associateByTo(profiles) { it.id }
+        }
+    }
+
+    operator fun get(tag: String) = profileId(tag)?.let { profiles[it] }
+
+    fun start() {
+        ticker = runOnDefaultDispatcher {
+            while (isActive) {
+                delay(FLUSH_INTERVAL)
+                flush()
+            }
+        }
+    }
+
+    fun update(status: OutboundStatus) {
+        val id = profileId(status.outboundTag)
+        if (id == null) {
+            Logs.d("Persist skipped on outbound ${status.outboundTag}")
+            return
+        }
+        val profile = profiles[id]
+        if (profile == null) {
+            Logs.d("Profile with id #$id not found")
+            return
+        }
+        val newStatus = if (status.alive) 1 else 3
+        val newDelay = status.delay.toInt()
+        val newErrorReason = status.lastErrorReason
+        synchronized(dirty) {
+            if (profile.status == newStatus && profile.ping == newDelay && profile.error == newErrorReason) {
+                return
+            }
+            profile.status = newStatus
+            profile.ping = newDelay
+            profile.error = newErrorReason
+            dirty.add(id)
+        }
+    }
+
+    private fun drain() = synchronized(dirty) {
+        dirty.map { id ->
+            profiles[id]!!.let { it.groupId to ProxyEntity.TestResult(id, it.status, it.ping, it.error) }
+        }.also { dirty.clear() }
+    }
+
+    suspend fun flush() {
+        val changed = drain()
+        if (changed.isEmpty()) return
+        SagerDatabase.proxyDao.updateTestResults(changed.map { it.second })
+        Logs.d("Sent ${changed.size} observatory results")
+        for (groupId in changed.map { it.first }.distinct()) {
+            service.data.binder.broadcast {
+                it.observatoryResultsUpdated(groupId)
+            }
+        }
+    }
+
+    fun close() {
+        ticker?.cancel()
+        val changed = drain()
+        if (changed.isNotEmpty()) SagerDatabase.proxyDao.updateTestResults(changed.map { it.second })
+    }
+
+}
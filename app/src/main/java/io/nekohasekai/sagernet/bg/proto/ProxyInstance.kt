@@ -19,13 +19,15 @@
 
 package io.nekohasekai.sagernet.bg.proto
 
-import cn.hutool.core.util.NumberUtil
+import android.util.LongSparseArray
+import androidx.core.util.forEach
 import com.v2ray.core.app.observatory.OutboundStatus
 import io.nekohasekai.sagernet.SagerNet
 import io.nekohasekai.sagernet.bg.BaseService
 import io.nekohasekai.sagernet.database.DataStore
 import io.nekohasekai.sagernet.database.ProxyEntity
 import io.nekohasekai.sagernet.database.SagerDatabase
+import io.nekohasekai.sagernet.fmt.StatsLayout
 import io.nekohasekai.sagernet.ktx.Logs
 import io.nekohasekai.sagernet.ktx.runOnDefaultDispatcher
 import io.nekohasekai.sagernet.utils.DirectBoot
@@ -33,9 +35,6 @@ import kotlinx.coroutines.Job
 import kotlinx.coroutines.runBlocking
 import libcore.ObservatoryStatusUpdateListener
 import java.io.IOException
-import java.util.*
-import java.util.concurrent.ConcurrentHashMap
-import kotlin.concurrent.timerTask
 
 class ProxyInstance(profile: ProxyEntity, val service: BaseService.Interface) : V2RayInstance(
     profile
@@ -43,6 +42,7 @@ class ProxyInstance(profile: ProxyEntity, val service: BaseService.Interface) :
     ObservatoryStatusUpdateListener {
 
     lateinit var observatoryJob: Job
+    private var observatory: ObservatoryAggregator? = null
 
     override fun init() {
         super.init()
@@ -54,10 +54,13 @@ class ProxyInstance(profile: ProxyEntity, val service: BaseService.Interface) :
         }
     }
 
-    override fun launch() {
+    override suspend fun launch() {
         super.launch()
 
         if (config.observerTag.isNotBlank()) {
+            observatory = ObservatoryAggregator(
+                service, config.observatoryTags, config.outboundTagsAll.values + profile
+            ).apply { start() }
             v2rayPoint.setStatusUpdateListener(config.observerTag, this)
             observatoryJob = runOnDefaultDispatcher {
                 sendInitStatuses()
@@ -68,87 +71,31 @@ class ProxyInstance(profile: ProxyEntity, val service: BaseService.Interface) :
     }
 
     fun sendInitStatuses() {
+        val observatory = observatory ?: return
         val time = (System.currentTimeMillis() / 1000) - 300
         for (observatoryTag in config.observatoryTags) {
-            val profileId = observatoryTag.substringAfter("global-")
-            if (NumberUtil.isLong(profileId)) {
-                val id = profileId.toLong()
-                val profile = when {
-                    id == profile.id -> profile
-                    statsOutbounds.containsKey(id) -> statsOutbounds[id]!!.proxyEntity
-                    else -> SagerDatabase.proxyDao.getById(id)
-                } ?: continue
-
-                if (profile.status > 0) v2rayPoint.updateStatus(
-                    config.observerTag,
-                    OutboundStatus.newBuilder()
-                        .setOutboundTag(observatoryTag)
-                        .setAlive(profile.status == 1)
-                        .setDelay(profile.ping.toLong())
-                        .setLastErrorReason(profile.error ?: "")
-                        .setLastTryTime(time)
-                        .setLastSeenTime(time)
-                        .build()
-                        .toByteArray()
-                )
-            }
+            val profile = observatory[observatoryTag] ?: continue
+            if (profile.status > 0) v2rayPoint.updateStatus(
+                config.observerTag,
+                OutboundStatus.newBuilder()
+                    .setOutboundTag(observatoryTag)
+                    .setAlive(profile.status == 1)
+                    .setDelay(profile.ping.toLong())
+                    .setLastErrorReason(profile.error ?: "")
+                    .setLastTryTime(time)
+                    .setLastSeenTime(time)
+                    .build()
+                    .toByteArray()
+            )
         }
     }
 
-    val updateTimer = lazy { Timer("Observatory Timer") }
-    val updateTasks by lazy { ConcurrentHashMap<Long, TimerTask>() }
-
     @Throws(Exception::class)
     override fun onUpdateObservatoryStatus(statusPb: ByteArray?) {
         if (statusPb == null || statusPb.isEmpty()) {
             return
         }
-        val status = OutboundStatus.parseFrom(statusPb)
-        val profileId = status.outboundTag.substringAfter("global-")
-        if (NumberUtil.isLong(profileId)) {
-            val id = profileId.toLong()
-            val profile = when {
-                id == profile.id -> profile
-                statsOutbounds.containsKey(id) -> statsOutbounds[id]!!.proxyEntity
-                else -> {
-                    SagerDatabase.proxyDao.getById(id)
-                }
-            }
-
-            if (profile != null) {
-                val newStatus = if (status.alive) 1 else 3
-                val newDelay = status.delay.toInt()
-                val newErrorReason = status.lastErrorReason
-
-                if (profile.status != newStatus || profile.ping != newDelay || profile.error != newErrorReason) {
-                    profile.status = newStatus
-                    profile.ping = newDelay
-                    profile.error = newErrorReason
-
-                    SagerDatabase.proxyDao.updateProxy(profile)
-
-                    Logs.d("Send result for #$profileId ${profile.displayName()}")
-
-                    val groupId = profile.groupId
-                    val task = timerTask {
-                        if (updateTasks[groupId] == this) {
-                            runOnDefaultDispatcher {
-                                service.data.binder.broadcast {
-                                    it.observatoryResultsUpdated(groupId)
-                                }
-                            }
-                            updateTasks.remove(groupId)
-                        }
-                    }
-                    updateTimer.value.schedule(task, 2000L)
-                    updateTasks.put(groupId, task)?.cancel()
-                }
-            } else {
-                Logs.d("Profile with id #$profileId not found")
-            }
-        } else {
-            Logs.d("Persist skipped on outbound ${status.outboundTag}")
-        }
+        observatory?.update(OutboundStatus.parseFrom(statusPb))
     }
 
     override fun close() {
@@ -157,8 +104,8 @@ class ProxyInstance(profile: ProxyEntity, val service: BaseService.Interface) :
         persistStats()
         super.close()
 
-        if (updateTimer.isInitialized()) updateTimer.value.cancel()
         if (::observatoryJob.isInitialized) observatoryJob.cancel()
+        observatory?.close()
     }
 
 // ------------- stats -------------
@@ -167,106 +114,82 @@ class ProxyInstance(profile: ProxyEntity, val service: BaseService.Interface) :
         return v2rayPoint.queryStats(tag, direct)
     }
 
-    private val currentTags by lazy {
-        mapOf(* config.outboundTagsCurrent.map {
-            it to config.outboundTagsAll[it]
-        }.toTypedArray())
-    }
-
-    private val statsTags by lazy {
-        mapOf(*  config.outboundTags.toMutableList().apply {
-            removeAll(config.outboundTagsCurrent)
-        }.map {
-            it to config.outboundTagsAll[it]
-        }.toTypedArray())
-    }
-
-    private val interTags by lazy {
-        config.outboundTagsAll.filterKeys { !config.outboundTags.contains(it) }
-    }
-
     class OutboundStats(
         val proxyEntity: ProxyEntity, var uplinkTotal: Long = 0L, var downlinkTotal: Long = 0L
     )
 
-    private val statsOutbounds = hashMapOf<Long, OutboundStats>()
-    private fun registerStats(
-        proxyEntity: ProxyEntity, uplink: Long? = null, downlink: Long? = null
-    ) {
-        if (proxyEntity.id == outboundStats.proxyEntity.id) return
-        val stats = statsOutbounds.getOrPut(proxyEntity.id) {
-            OutboundStats(proxyEntity)
-        }
-        if (uplink != null) {
-            stats.uplinkTotal += uplink
-        }
-        if (downlink != null) {
-            stats.downlinkTotal += downlink
-        }
-    }
+    private val statsLayout get() = config.statsLayout
 
-    var uplinkProxy = 0L
-    var downlinkProxy = 0L
-    var uplinkTotalDirect = 0L
-    var downlinkTotalDirect = 0L
+    // uplink at 2 * i, downlink at 2 * i + 1
+    private val counters by lazy { LongArray(statsLayout.size * 2) }
 
     private val outboundStats = OutboundStats(profile)
-    fun outboundStats(): Pair<OutboundStats, HashMap<Long, OutboundStats>> {
-        if (!isInitialized()) return outboundStats to statsOutbounds
-        uplinkProxy = 0L
-        downlinkProxy = 0L
-
-        val currentUpLink = currentTags.map { (tag, profile) ->
-            queryStats(tag, "uplink").apply {
-                profile?.also {
-                    registerStats(
-                        it, uplink = this
-                    )
-                }
-            }
-        }
-        val currentDownLink = currentTags.map { (tag, profile) ->
-            queryStats(tag, "downlink").apply {
-                profile?.also {
-                    registerStats(it, downlink = this)
+
+    // per tag accumulator, null when the tag is accounted to the current profile only
+    private val tagStats by lazy {
+        Array(statsLayout.size) { i ->
+            statsLayout.entities[i]?.takeIf { it.id != profile.id }?.let {
+                statsOutbounds[it.id] ?: OutboundStats(it).also { stats ->
+                    statsOutbounds.put(it.id, stats)
                 }
             }
         }
-        uplinkProxy += currentUpLink.fold(0L) { acc, l -> acc + l }
-        downlinkProxy += currentDownLink.fold(0L) { acc, l -> acc + l }
+    }
 
-        outboundStats.uplinkTotal += uplinkProxy
-        outboundStats.downlinkTotal += downlinkProxy
+    val statsOutbounds = LongSparseArray<OutboundStats>()
 
-        if (statsTags.isNotEmpty()) {
-            uplinkProxy += statsTags.map { (tag, profile) ->
-                queryStats(tag, "uplink").apply {
-                    profile?.also {
-                        registerStats(it, uplink = this)
-                    }
-                }
-            }.fold(0L) { acc, l -> acc + l }
-            downlinkProxy += statsTags.map { (tag, profile) ->
-                queryStats(tag, "downlink").apply {
-                    profile?.also {
-                        registerStats(it, downlink = this)
-                    }
-                }
-            }.fold(0L) { acc, l -> acc + l }
+    var uplinkProxy = 0L
+    var downlinkProxy = 0L
+    var uplinkTotalDirect = 0L
+    var downlinkTotalDirect = 0L
+
+    /**
+     * Reads every counter of the layout in one pass.
+     */
+    private fun snapshot(): LongArray {
+        val tags = statsLayout.tags
+        for (i in tags.indices) {
+            counters[2 * i] = queryStats(tags[i], "uplink")
+            counters[2 * i + 1] = queryStats(tags[i], "downlink")
         }
+        return counters
+    }
 
-        if (interTags.isNotEmpty()) {
-            interTags.map { (tag, profile) ->
-                queryStats(tag, "uplink").also { registerStats(profile, uplink = it) }
+    fun outboundStats(): OutboundStats {
+        if (!isInitialized()) return outboundStats
+        val kinds = statsLayout.kinds
+        val accumulators = tagStats
+        val counters = snapshot()
+
+        var uplinkCurrent = 0L
+        var downlinkCurrent = 0L
+        var uplink = 0L
+        var downlink = 0L
+        for (i in kinds.indices) {
+            val up = counters[2 * i]
+            val down = counters[2 * i + 1]
+            accumulators[i]?.apply {
+                uplinkTotal += up
+                downlinkTotal += down
             }
-            interTags.map { (tag, profile) ->
-                queryStats(tag, "downlink").also {
-                    registerStats(profile, downlink = it)
+            when (kinds[i]) {
+                StatsLayout.KIND_CURRENT -> {
+                    uplinkCurrent += up
+                    downlinkCurrent += down
+                }
+                StatsLayout.KIND_STATS -> {
+                    uplink += up
+                    downlink += down
                 }
             }
         }
 
-        return outboundStats to statsOutbounds
+        outboundStats.uplinkTotal += uplinkCurrent
+        outboundStats.downlinkTotal += downlinkCurrent
+        uplinkProxy = uplinkCurrent + uplink
+        downlinkProxy = downlinkCurrent + downlink
+
+        return outboundStats
     }
 
     fun bypassStats(direct: String): Long {
@@ -287,23 +210,21 @@ class ProxyInstance(profile: ProxyEntity, val service: BaseService.Interface) :
             try {
                 outboundStats()
 
-                val toUpdate = mutableListOf<ProxyEntity>()
-                if (outboundStats.uplinkTotal + outboundStats.downlinkTotal != 0L) {
-                    profile.tx += outboundStats.uplinkTotal
-                    profile.rx += outboundStats.downlinkTotal
-                    toUpdate.add(profile)
-                }
-
-                statsOutbounds.values.forEach {
-                    if (it.uplinkTotal + it.downlinkTotal != 0L) {
-                        it.proxyEntity.tx += it.uplinkTotal
-                        it.proxyEntity.rx += it.downlinkTotal
-                        toUpdate.add(it.proxyEntity)
+                // only add to the counters, the entities may be older than their rows
+                SagerDatabase.runInTransaction {
+                    if (outboundStats.uplinkTotal + outboundStats.downlinkTotal != 0L) {
+                        SagerDatabase.proxyDao.addTraffic(
+                            profile.id, outboundStats.uplinkTotal, outboundStats.downlinkTotal
+                        )
                     }
-                }
 
-                if (toUpdate.isNotEmpty()) {
-                    SagerDatabase.proxyDao.updateProxy(toUpdate)
+                    statsOutbounds.forEach { _, stats ->
+                        if (stats.uplinkTotal + stats.downlinkTotal != 0L) {
+                            SagerDatabase.proxyDao.addTraffic(
+                                stats.proxyEntity.id, stats.uplinkTotal, stats.downlinkTotal
+                            )
+                        }
+                    }
                 }
             } catch (e: IOException) {
                 if (!DataStore.directBootAware) throw e // we should only reach here because we're in direct boot
@@ -58,7 +58,9 @@ import io.nekohasekai.sagernet.fmt.tuic5.buildTuic5Config
 import io.nekohasekai.sagernet.fmt.shadowtls.ShadowTLSBean
 import io.nekohasekai.sagernet.ktx.*
 import io.nekohasekai.sagernet.plugin.PluginManager
+import io.nekohasekai.sagernet.utils.PortAllocator
 import kotlinx.coroutines.*
+import kotlinx.coroutines.selects.select
 import libcore.V2RayInstance
 import java.io.File
 import java.util.concurrent.atomic.AtomicBoolean
@@ -190,11 +192,14 @@ abstract class V2RayInstance(
     }
 
     @SuppressLint("SetJavaScriptEnabled")
-    override fun launch() {
+    override suspend fun launch() {
         val context = if (Build.VERSION.SDK_INT < 24 || SagerNet.user.isUserUnlocked) SagerNet.application else SagerNet.deviceStorage
         val useSystemCACerts = DataStore.providerRootCA == RootCAProvider.SYSTEM
         val rootCaPem by lazy { File(app.filesDir, "mozilla_included.pem").canonicalPath }
 
+        PortAllocator.handOver(config.ports)
+
+        val pluginStarts = ArrayList<PluginStart>()
         for ((_, chain) in config.index) {
             chain.entries.forEachIndexed { _, (port, profile) ->
                 val bean = profile.requireBean()
@@ -223,7 +228,7 @@ abstract class V2RayInstance(
                             initPlugin("trojan-go-plugin").path, "-config", configFile.absolutePath
                         )
 
-                        processes.start(commands, env)
+                        pluginStarts.add(PluginStart(port, commands, env))
                     }
                     bean is NaiveBean -> {
                         val configFile = File(
@@ -239,7 +244,7 @@ abstract class V2RayInstance(
                             initPlugin("naive-plugin").path, configFile.absolutePath
                         )
 
-                        processes.start(commands, env)
+                        pluginStarts.add(PluginStart(port, commands, env))
                     }
                     bean is BrookBean -> {
                         val commands = mutableListOf(initPlugin("brook-plugin").path)
@@ -265,7 +270,7 @@ abstract class V2RayInstance(
                         commands.add("--socks5")
                         commands.add(joinHostPort(LOCALHOST, port))
 
-                        processes.start(commands, env)
+                        pluginStarts.add(PluginStart(port, commands, env))
                     }
                     bean is HysteriaBean -> {
                         val configFile = File(
@@ -291,7 +296,7 @@ abstract class V2RayInstance(
                             commands.addAll(0, listOf("su", "-c"))
                         }
 
-                        processes.start(commands, env)
+                        pluginStarts.add(PluginStart(port, commands, env))
                     }
                     bean is Hysteria2Bean -> {
                         val configFile = File(
@@ -313,7 +318,7 @@ abstract class V2RayInstance(
                             "client"
                         )
 
-                        processes.start(commands, env)
+                        pluginStarts.add(PluginStart(port, commands, env))
                     }
                     bean is MieruBean -> {
                         val configFile = File(
@@ -331,7 +336,7 @@ abstract class V2RayInstance(
                             initPlugin("mieru-plugin").path, "run"
                         )
 
-                        processes.start(commands, env)
+                        pluginStarts.add(PluginStart(port, commands, env))
                     }
                     bean is TuicBean -> {
                         val configFile = File(
@@ -349,7 +354,7 @@ abstract class V2RayInstance(
                             configFile.absolutePath,
                         )
 
-                        processes.start(commands, env)
+                        pluginStarts.add(PluginStart(port, commands, env))
                     }
                     bean is Tuic5Bean -> {
                         val configFile = File(
@@ -367,7 +372,7 @@ abstract class V2RayInstance(
                             configFile.absolutePath,
                         )
 
-                        processes.start(commands, env)
+                        pluginStarts.add(PluginStart(port, commands, env))
                     }
                     bean is ShadowTLSBean -> {
                         val commands = mutableListOf(initPlugin("shadowtls-plugin").path)
@@ -391,7 +396,7 @@ abstract class V2RayInstance(
                             commands.add("--password")
                             commands.add(bean.password)
                         }
-                        processes.start(commands, env)
+                        pluginStarts.add(PluginStart(port, commands, env))
                     }
                     bean is JuicityBean -> {
                         val configFile = File(
@@ -408,13 +413,17 @@ abstract class V2RayInstance(
                             configFile.absolutePath,
                         )
                         
-                        processes.start(commands, env)
+                        pluginStarts.add(PluginStart(port, commands, env))
                     }
                 }
             }
         }
 
+        startPlugins(pluginStarts)
+
+        val coreStart = SystemClock.elapsedRealtime()
         v2rayPoint.start()
+        Logs.d("core started in ${SystemClock.elapsedRealtime() - coreStart}ms")
 
         if (config.requireWs) {
             val url = "http://" + joinHostPort(LOCALHOST, config.wsPort) + "/"
@@ -484,6 +493,44 @@ abstract class V2RayInstance(
 
     }
 
+    private class PluginStart(
+        val port: Int, val commands: List<String>, val env: Map<String, String>
+    )
+
+    /**
+     * Spawn all plugin processes at once, then wait for each to accept connections on its
+     * local port so the core does not route its first connections into a closed port.
+     * Suspends rather than blocks, so the guards can report a plugin that exits right away.
+     */
+    private suspend fun startPlugins(pluginStarts: List<PluginStart>) {
+        if (pluginStarts.isEmpty()) return
+        val begin = SystemClock.elapsedRealtime()
+        coroutineScope {
+            pluginStarts.map { plugin ->
+                async {
+                    val exitCode = withContext(Dispatchers.IO) {
+                        processes.start(plugin.commands, plugin.env)
+                    }
+                    val spawned = SystemClock.elapsedRealtime() - begin
+                    val listening = async {
+                        awaitListening(LOCALHOST, plugin.port, PLUGIN_READY_TIMEOUT)
+                    }
+                    val ready = select<Boolean?> {
+                        listening.onAwait { it }
+                        exitCode.onAwait { null }
+                    }
+                    listening.cancel()
+                    when (ready) {
+                        true -> Logs.d("plugin on port ${plugin.port}: spawned +${spawned}ms, ready +${SystemClock.elapsedRealtime() - begin}ms")
+                        false -> Logs.w("plugin on port ${plugin.port} not ready after ${PLUGIN_READY_TIMEOUT}ms")
+                        null -> Logs.w("plugin on port ${plugin.port} exited before it was ready")
+                    }
+                }
+            }.awaitAll()
+        }
+        Logs.d("${pluginStarts.size} plugins started in ${SystemClock.elapsedRealtime() - begin}ms")
+    }
+
     private var isClosed = false
 
     @Suppress("EXPERIMENTAL_API_USAGE")
@@ -522,7 +569,13 @@ abstract class V2RayInstance(
             v2rayPoint.close()
         }
 
+        if (::config.isInitialized) PortAllocator.recycle(config.ports)
+
         isClosed = true
     }
 
+    companion object {
+        private const val PLUGIN_READY_TIMEOUT = 5000L
+    }
+
 }
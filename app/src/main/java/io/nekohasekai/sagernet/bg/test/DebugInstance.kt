@@ -26,7 +26,7 @@ class DebugInstance : AbstractInstance {
 
     lateinit var instance: DebugInstance
 
-    override fun launch() {
+    override suspend fun launch() {
         instance = Libcore.newDebugInstance()
     }
 
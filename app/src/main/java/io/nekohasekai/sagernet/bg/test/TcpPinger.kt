@@ -0,0 +1,174 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2021 by nekohasekai <contact-sagernet@sekai.icu>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+
+package io.nekohasekai.sagernet.bg.test
+
+import io.nekohasekai.sagernet.ktx.Logs
+import io.nekohasekai.sagernet.ktx.fileDescriptor
+import io.nekohasekai.sagernet.ktx.int
+import io.nekohasekai.sagernet.ktx.tryResume
+import io.nekohasekai.sagernet.ktx.tryResumeWithException
+import kotlinx.coroutines.CancellableContinuation
+import kotlinx.coroutines.suspendCancellableCoroutine
+import java.io.Closeable
+import java.io.IOException
+import java.net.InetSocketAddress
+import java.net.SocketTimeoutException
+import java.nio.channels.SelectionKey
+import java.nio.channels.Selector
+import java.nio.channels.SocketChannel
+import java.util.PriorityQueue
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.TimeUnit
+
+/**
+ * TCP ping with non-blocking connects driven by one selector thread,
+ * so waiting for a connection does not occupy a thread.
+ */
+class TcpPinger(private val protect: (Int) -> Unit) : Closeable {
+
+    private class Connect(
+        val channel: SocketChannel,
+        val start: Long,
+        val deadline: Long,
+        val continuation: CancellableContinuation<Int>,
+    ) {
+        @Volatile
+        var cancelled = false
+    }
+
+    private val selector = Selector.open()
+    private val registrations = ConcurrentLinkedQueue<Connect>()
+    private val deadlines = PriorityQueue<Connect>(compareBy { it.deadline })
+
+    @Volatile
+    private var closed = false
+
+    private val thread = Thread(::loop, "TCP ping selector").apply {
+        isDaemon = true
+        start()
+    }
+
+    /**
+     * Returns the connect time in milliseconds, or throws like [java.net.Socket.connect].
+     */
+    suspend fun ping(address: InetSocketAddress, timeout: Int): Int {
+        return suspendCancellableCoroutine { c ->
+            var channel: SocketChannel? = null
+            try {
+                channel = SocketChannel.open()
+                channel.configureBlocking(false)
+                protect(channel.socket().fileDescriptor.int)
+                val start = System.nanoTime()
+                if (channel.connect(address)) {
+                    channel.close()
+                    c.tryResume(elapsed(start))
+                    return@suspendCancellableCoroutine
+                }
+                val connect = Connect(
+                    channel, start, start + TimeUnit.MILLISECONDS.toNanos(timeout.toLong()), c
+                )
+                c.invokeOnCancellation {
+                    connect.cancelled = true
+                    selector.wakeup()
+                }
+                registrations.add(connect)
+                selector.wakeup()
+            } catch (e: Exception) {
+                runCatching { channel?.close() }
+                c.tryResumeWithException(e)
+            }
+        }
+    }
+
+    private fun elapsed(start: Long) = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start).toInt()
+
+    private fun loop() {
+        try {
+            while (!closed) {
+                val next = deadlines.peek()
+                val wait = if (next == null) 0L else {
+                    TimeUnit.NANOSECONDS.toMillis(next.deadline - System.nanoTime()).coerceAtLeast(1L)
+                }
+                selector.select(wait)
+                if (closed) break
+
+                while (true) {
+                    val connect = registrations.poll() ?: break
+                    try {
+                        connect.channel.register(selector, SelectionKey.OP_CONNECT, connect)
+                        deadlines.add(connect)
+                    } catch (e: IOException) {
+                        finish(connect, e)
+                    }
+                }
+
+                val iterator = selector.selectedKeys().iterator()
+                while (iterator.hasNext()) {
+                    val key = iterator.next()
+                    iterator.remove()
+                    val connect = key.attachment() as Connect
+                    try {
+                        if (connect.channel.finishConnect()) {
+                            val time = elapsed(connect.start)
+                            finish(connect, null)
+                            connect.continuation.tryResume(time)
+                        }
+                    } catch (e: IOException) {
+                        finish(connect, e)
+                    }
+                }
+
+                val now = System.nanoTime()
+                while (true) {
+                    val connect = deadlines.peek() ?: break
+                    if (connect.channel.isOpen && !connect.cancelled && connect.deadline > now) break
+                    deadlines.poll()
+                    if (connect.channel.isOpen) {
+                        finish(connect, SocketTimeoutException("connect timed out"))
+                    }
+                }
+                // cancelled ones are closed without waiting for their deadline
+                for (key in selector.keys()) {
+                    val connect = key.attachment() as Connect
+                    if (connect.cancelled) finish(connect, null)
+                }
+            }
+        } catch (e: Exception) {
+            if (!closed) Logs.w(e)
+        } finally {
+            for (connect in registrations + deadlines) {
+                finish(connect, IOException("closed"))
+            }
+            runCatching { selector.close() }
+        }
+    }
+
+    private fun finish(connect: Connect, error: Exception?) {
+        runCatching { connect.channel.close() }
+        if (error != null) connect.continuation.tryResumeWithException(error)
+    }
+
+    override fun close() {
+        closed = true
+        selector.wakeup()
+    }
+
+}
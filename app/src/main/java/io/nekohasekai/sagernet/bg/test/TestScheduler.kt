@@ -0,0 +1,168 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2021 by nekohasekai <contact-sagernet@sekai.icu>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+
+package io.nekohasekai.sagernet.bg.test
+
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * Runs connection tests with an AIMD controlled number of probes in flight.
+ *
+ * Completions are judged in windows of the current limit. The limit grows after a window
+ * without timeouts (doubling until the first decrease, then by one) and shrinks
+ * multiplicatively after a window with too many timeouts or whose average RTT is far above
+ * the best window average seen. Averages are compared since the hosts themselves differ in RTT.
+ * At most [perHostLimit] probes target one host at a time.
+ */
+class TestScheduler<T>(
+    private val hostOf: (T) -> String,
+    initialConcurrency: Int = 6,
+    private val minConcurrency: Int = 2,
+    private val maxConcurrency: Int = 64,
+    private val perHostLimit: Int = 4,
+    private val dispatcher: CoroutineDispatcher = Dispatchers.IO,
+) {
+
+    companion object {
+        /** Probe result: timed out, counts against the concurrency. */
+        const val TIMEOUT = -1L
+
+        /** Probe result: failed for another reason, e.g. refused or not testable. */
+        const val FAILED = -2L
+
+        private const val TIMEOUT_RATE_LIMIT = 0.2
+        private const val RTT_INFLATION_LIMIT = 2.0
+        private const val DECREASE_FACTOR = 0.7
+    }
+
+    private val lock = Any()
+    private val queues = LinkedHashMap<String, ArrayDeque<T>>()
+    private val hostsInFlight = HashMap<String, Int>()
+
+    @Volatile
+    var concurrency = initialConcurrency.coerceIn(minConcurrency, maxConcurrency)
+        private set
+
+    @Volatile
+    var queueDepth = 0
+        private set
+
+    @Volatile
+    var inFlight = 0
+        private set
+
+    private var slowStart = true
+    private var windowCompleted = 0
+    private var windowTimeouts = 0
+    private var windowRttSum = 0L
+    private var windowRttCount = 0
+    private var baseRtt = Double.MAX_VALUE
+
+    /**
+     * Tests all [items], [probe] returns the measured RTT in milliseconds, [TIMEOUT] or [FAILED].
+     */
+    suspend fun run(items: List<T>, probe: suspend CoroutineScope.(T) -> Long) = coroutineScope {
+        synchronized(lock) {
+            for (item in items) queues.getOrPut(hostOf(item)) { ArrayDeque() }.add(item)
+            queueDepth += items.size
+        }
+        val wake = Channel<Unit>(Channel.CONFLATED)
+        while (true) {
+            var done = false
+            val next = synchronized(lock) {
+                if (queueDepth == 0 && inFlight == 0) done = true
+                if (done || inFlight >= concurrency) null else poll()
+            }
+            if (done) break
+            if (next == null) {
+                wake.receive()
+                continue
+            }
+            val (host, item) = next
+            launch(dispatcher) {
+                var result = FAILED
+                try {
+                    result = probe(item)
+                } finally {
+                    complete(host, result)
+                    wake.trySend(Unit)
+                }
+            }
+        }
+    }
+
+    private fun poll(): Pair<String, T>? {
+        val iterator = queues.entries.iterator()
+        while (iterator.hasNext()) {
+            val (host, queue) = iterator.next()
+            val running = hostsInFlight[host] ?: 0
+            if (running >= perHostLimit) continue
+            val item = queue.removeFirst()
+            if (queue.isEmpty()) iterator.remove()
+            hostsInFlight[host] = running + 1
+            queueDepth--
+            inFlight++
+            return host to item
+        }
+        return null
+    }
+
+    private fun complete(host: String, result: Long) = synchronized(lock) {
+        inFlight--
+        val running = (hostsInFlight[host] ?: 1) - 1
+        if (running > 0) hostsInFlight[host] = running else hostsInFlight.remove(host)
+
+        if (result == FAILED) return@synchronized
+        windowCompleted++
+        if (result == TIMEOUT) {
+            windowTimeouts++
+        } else {
+            windowRttSum += result
+            windowRttCount++
+        }
+        if (windowCompleted < concurrency) return@synchronized
+
+        val averageRtt = if (windowRttCount >= 3) windowRttSum.toDouble() / windowRttCount else -1.0
+        val inflated = averageRtt > 0 && baseRtt != Double.MAX_VALUE &&
+                averageRtt > max(baseRtt, 1.0) * RTT_INFLATION_LIMIT
+        val congested = inflated || windowTimeouts > windowCompleted * TIMEOUT_RATE_LIMIT
+        if (!congested && averageRtt > 0) baseRtt = min(baseRtt, averageRtt)
+        concurrency = if (congested) {
+            slowStart = false
+            max(minConcurrency, (concurrency * DECREASE_FACTOR).toInt())
+        } else if (windowTimeouts == 0) {
+            min(maxConcurrency, if (slowStart) concurrency * 2 else concurrency + 1)
+        } else {
+            concurrency
+        }
+        windowCompleted = 0
+        windowTimeouts = 0
+        windowRttSum = 0
+        windowRttCount = 0
+    }
+
+}
@@ -0,0 +1,71 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2021 by nekohasekai <contact-sagernet@sekai.icu>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+
+package io.nekohasekai.sagernet.bg.test
+
+import io.nekohasekai.sagernet.RootCAProvider
+import io.nekohasekai.sagernet.bg.GuardedProcessPool
+import io.nekohasekai.sagernet.bg.proto.V2RayInstance
+import io.nekohasekai.sagernet.database.DataStore
+import io.nekohasekai.sagernet.database.ProxyEntity
+import io.nekohasekai.sagernet.fmt.buildV2RayConfig
+import io.nekohasekai.sagernet.fmt.testTag
+import io.nekohasekai.sagernet.ktx.Logs
+import io.nekohasekai.sagernet.ktx.runOnDefaultDispatcher
+import io.nekohasekai.sagernet.ktx.tryResume
+import io.nekohasekai.sagernet.ktx.tryResumeWithException
+import libcore.Libcore
+import kotlin.coroutines.suspendCoroutine
+
+/**
+ * Tests many profiles on one core instance: every profile gets its own outbound chain,
+ * selected by the inbound tag passed to urlTest.
+ */
+class V2RayBatchTestInstance(
+    val profiles: List<ProxyEntity>, val link: String, val timeout: Int
+) : V2RayInstance(profiles.first()) {
+
+    suspend fun start() {
+        suspendCoroutine { c ->
+            processes = GuardedProcessPool {
+                Logs.w(it)
+                c.tryResumeWithException(it)
+            }
+            runOnDefaultDispatcher {
+                try {
+                    init()
+                    launch()
+                    Libcore.updateSystemRoots(DataStore.providerRootCA == RootCAProvider.SYSTEM)
+                    c.tryResume(Unit)
+                } catch (e: Exception) {
+                    c.tryResumeWithException(e)
+                }
+            }
+        }
+    }
+
+    fun doTest(profile: ProxyEntity): Int {
+        return Libcore.urlTest(v2rayPoint, testTag(profile.id), link, timeout)
+    }
+
+    override fun buildConfig() {
+        config = buildV2RayConfig(profile, true, profiles)
+    }
+}
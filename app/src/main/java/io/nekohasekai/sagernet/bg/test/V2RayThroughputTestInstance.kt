@@ -0,0 +1,153 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2021 by nekohasekai <contact-sagernet@sekai.icu>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+
+package io.nekohasekai.sagernet.bg.test
+
+import android.os.SystemClock
+import io.nekohasekai.sagernet.RootCAProvider
+import io.nekohasekai.sagernet.bg.GuardedProcessPool
+import io.nekohasekai.sagernet.bg.proto.V2RayInstance
+import io.nekohasekai.sagernet.database.DataStore
+import io.nekohasekai.sagernet.database.ProxyEntity
+import io.nekohasekai.sagernet.fmt.LOCALHOST
+import io.nekohasekai.sagernet.fmt.buildV2RayConfig
+import io.nekohasekai.sagernet.ktx.Logs
+import io.nekohasekai.sagernet.ktx.runOnIoDispatcher
+import io.nekohasekai.sagernet.ktx.tryResume
+import io.nekohasekai.sagernet.ktx.tryResumeWithException
+import io.nekohasekai.sagernet.utils.PortAllocator
+import libcore.Libcore
+import java.io.IOException
+import java.net.HttpURLConnection
+import java.net.InetSocketAddress
+import java.net.Proxy
+import java.net.URL
+import kotlin.coroutines.suspendCoroutine
+import kotlin.math.sqrt
+
+/**
+ * Downloads [link] through the local socks inbound of a test core. A link to a stand-in
+ * server on loopback is not sent through the profile: such a run validates the measurement
+ * offline, but says nothing about the profile.
+ */
+class V2RayThroughputTestInstance(
+    profile: ProxyEntity,
+    val link: String,
+    val timeout: Int,
+    val maxBytes: Long = 32L * 1024 * 1024,
+    val duration: Long = 10000L
+) : V2RayInstance(profile) {
+
+    companion object {
+        const val SAMPLE_INTERVAL = 250L
+
+        // the first samples are spent in tcp slow start
+        const val WARM_UP_SAMPLES = 2
+    }
+
+    /**
+     * Rates are in bytes per second.
+     */
+    data class Result(val ttfb: Int, val speed: Long, val deviation: Long)
+
+    private val port = PortAllocator.allocate()
+
+    suspend fun doTest(): Result {
+        return suspendCoroutine { c ->
+            processes = GuardedProcessPool {
+                Logs.w(it)
+                c.tryResumeWithException(it)
+            }
+            runOnIoDispatcher {
+                try {
+                    init()
+                    launch()
+                    Libcore.updateSystemRoots(DataStore.providerRootCA == RootCAProvider.SYSTEM)
+                    c.tryResume(download())
+                } catch (e: Exception) {
+                    c.tryResumeWithException(e)
+                }
+            }
+        }
+    }
+
+    private fun download(): Result {
+        val conn = URL(link).openConnection(
+            Proxy(Proxy.Type.SOCKS, InetSocketAddress(LOCALHOST, port))
+        ) as HttpURLConnection
+        conn.connectTimeout = timeout
+        conn.readTimeout = timeout
+        conn.useCaches = false
+        conn.setRequestProperty("Accept-Encoding", "identity")
+        try {
+            val start = SystemClock.elapsedRealtime()
+            val code = conn.responseCode
+            if (code != HttpURLConnection.HTTP_OK) throw IOException("HTTP $code")
+            val buffer = ByteArray(64 * 1024)
+            val samples = ArrayList<Double>()
+            conn.inputStream.use { input ->
+                var read = input.read(buffer)
+                if (read < 0) throw IOException("empty response")
+                val firstByte = SystemClock.elapsedRealtime()
+                var total = read.toLong()
+                var intervalStart = firstByte
+                var intervalBytes = read.toLong()
+                var now = firstByte
+                while (total < maxBytes && now - firstByte < duration) {
+                    read = input.read(buffer)
+                    if (read < 0) break
+                    total += read
+                    intervalBytes += read
+                    now = SystemClock.elapsedRealtime()
+                    if (now - intervalStart >= SAMPLE_INTERVAL) {
+                        samples.add(intervalBytes * 1000.0 / (now - intervalStart))
+                        intervalStart = now
+                        intervalBytes = 0
+                    }
+                }
+                val ttfb = (firstByte - start).toInt()
+                val sustained = samples.drop(WARM_UP_SAMPLES)
+                if (sustained.size < 2) {
+                    // too small a payload to sample, only the average is meaningful
+                    val elapsed = (now - firstByte).coerceAtLeast(1L)
+                    return Result(ttfb, total * 1000 / elapsed, 0L)
+                }
+                val mean = sustained.average()
+                val variance = sustained.sumOf { (it - mean) * (it - mean) } / (sustained.size - 1)
+                return Result(ttfb, mean.toLong(), sqrt(variance).toLong())
+            }
+        } finally {
+            conn.disconnect()
+        }
+    }
+
+    // once in the config, the port is recycled along with it
+    private var portInConfig = false
+
+    override fun buildConfig() {
+        config = buildV2RayConfig(profile, true, testSocksPort = port)
+        portInConfig = true
+    }
+
+    override fun close() {
+        super.close()
+        if (!portInConfig) PortAllocator.recycle(listOf(port))
+    }
+}
@@ -49,6 +49,7 @@ object DataStore : OnPreferenceDataStoreChangeListener {
     var selectedProxy by configurationStore.long(Key.PROFILE_ID)
     var currentProfile by configurationStore.long(Key.PROFILE_CURRENT)
     var startedProfile by configurationStore.long(Key.PROFILE_STARTED)
+    var pluginCache by configurationStore.string(Key.PLUGIN_CACHE)
 
     var selectedGroup by configurationStore.long(Key.PROFILE_GROUP) {
         SagerNet.currentProfile?.groupId ?: 0L
@@ -206,6 +207,7 @@ object DataStore : OnPreferenceDataStoreChangeListener {
     var requireTransproxy by configurationStore.boolean(Key.REQUIRE_TRANSPROXY)
     var transproxyMode by configurationStore.stringToInt(Key.TRANSPROXY_MODE)
     var connectionTestURL by configurationStore.string(Key.CONNECTION_TEST_URL) { CONNECTION_TEST_URL }
+    var speedTestURL by configurationStore.string(Key.SPEED_TEST_URL) { SPEED_TEST_URL }
     var alwaysShowAddress by configurationStore.boolean(Key.ALWAYS_SHOW_ADDRESS)
     var showGroupName by configurationStore.boolean(Key.SHOW_GROUP_NAME)
 
@@ -357,6 +359,7 @@ object DataStore : OnPreferenceDataStoreChangeListener {
     var groupName by profileCacheStore.string(Key.GROUP_NAME)
     var groupType by profileCacheStore.stringToInt(Key.GROUP_TYPE)
     var groupOrder by profileCacheStore.stringToInt(Key.GROUP_ORDER)
+    var groupHealthCheckInterval by profileCacheStore.stringToInt(Key.GROUP_HEALTH_CHECK_INTERVAL)
 
     var subscriptionType by profileCacheStore.stringToInt(Key.SUBSCRIPTION_TYPE)
     var subscriptionLink by profileCacheStore.string(Key.SUBSCRIPTION_LINK)
@@ -80,12 +80,35 @@ object GroupManager {
         iterator { groupUpdated(groupId) }
     }
 
-    fun rearrange(groupId: Long) {
-        val entities = SagerDatabase.proxyDao.getByGroup(groupId)
-        for (index in entities.indices) {
-            entities[index].userOrder = (index + 1).toLong()
+    /**
+     * Respace the order keys of a group, only touching the userOrder column.
+     * Needed only when a move finds no free key between its neighbours.
+     */
+    fun rearrange(groupId: Long): Map<Long, Long> {
+        val ids = SagerDatabase.proxyDao.getIdsByGroup(groupId)
+        val orders = HashMap<Long, Long>(ids.size)
+        SagerDatabase.runInTransaction {
+            for (index in ids.indices) {
+                val order = (index + 1) * ProxyEntity.ORDER_GAP
+                SagerDatabase.proxyDao.updateOrder(ids[index], order)
+                orders[ids[index]] = order
+            }
+        }
+        return orders
+    }
+
+    /**
+     * Pick a key between two neighbours (null at the list edges),
+     * or null if there is no free key left and the group should be rearranged.
+     */
+    fun orderBetween(previous: Long?, next: Long?): Long? {
+        return when {
+            previous == null && next == null -> ProxyEntity.ORDER_GAP
+            previous == null -> next!! - ProxyEntity.ORDER_GAP
+            next == null -> previous + ProxyEntity.ORDER_GAP
+            next - previous > 1 -> previous + (next - previous) / 2
+            else -> null
         }
-        SagerDatabase.proxyDao.updateProxy(entities)
     }
 
     suspend fun postUpdate(group: ProxyGroup) {
@@ -0,0 +1,99 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2021 by nekohasekai <contact-sagernet@sekai.icu>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+
+package io.nekohasekai.sagernet.database
+
+import androidx.room.*
+
+/**
+ * Rolling latency statistics of a profile, fed by the background health checks.
+ * [samples] keeps the last [WINDOW] results as little-endian shorts, -1 for a lost probe.
+ */
+@Entity(tableName = "probe_stats")
+class ProbeStatsEntity(
+    @PrimaryKey var profileId: Long = 0L,
+    var samples: ByteArray = ByteArray(0),
+    var ewma: Double = -1.0,
+    var p50: Int = -1,
+    var p95: Int = -1,
+    var lossRate: Float = 0f,
+    var updatedAt: Long = 0L,
+) {
+
+    companion object {
+        const val WINDOW = 32
+        private const val ALPHA = 0.25
+    }
+
+    fun add(rtt: Int) {
+        val count = samples.size / 2
+        val values = IntArray(minOf(count + 1, WINDOW))
+        val skip = count + 1 - values.size
+        for (i in skip until count) {
+            values[i - skip] = (samples[i * 2].toInt() and 0xFF) or (samples[i * 2 + 1].toInt() shl 8)
+        }
+        values[values.lastIndex] = rtt.coerceIn(-1, Short.MAX_VALUE.toInt())
+        samples = ByteArray(values.size * 2).also {
+            values.forEachIndexed { i, value ->
+                it[i * 2] = value.toByte()
+                it[i * 2 + 1] = (value shr 8).toByte()
+            }
+        }
+
+        if (rtt >= 0) ewma = if (ewma < 0) rtt.toDouble() else ewma + ALPHA * (rtt - ewma)
+        val received = values.filter { it >= 0 }.sorted()
+        lossRate = 1f - received.size.toFloat() / values.size
+        if (received.isEmpty()) {
+            p50 = -1
+            p95 = -1
+        } else {
+            p50 = received[(received.size - 1) / 2]
+            p95 = received[((received.size - 1) * 95 + 99) / 100]
+        }
+        updatedAt = System.currentTimeMillis()
+    }
+
+    /**
+     * Lower is better: the median pulled toward the tail, penalized by loss.
+     */
+    val score: Int
+        get() {
+            if (p50 < 0) return Int.MAX_VALUE
+            return ((p50 + p95) / 2 / (1f - lossRate.coerceAtMost(0.9f))).toInt()
+        }
+
+    @androidx.room.Dao
+    interface Dao {
+
+        @Query("SELECT probe_stats.* FROM probe_stats INNER JOIN proxy_entities ON proxy_entities.id = probe_stats.profileId WHERE proxy_entities.groupId = :groupId")
+        fun getByGroup(groupId: Long): List<ProbeStatsEntity>
+
+        @Query("SELECT * FROM probe_stats WHERE profileId IN (:profileIds)")
+        fun getByIds(profileIds: List<Long>): List<ProbeStatsEntity>
+
+        @Insert(onConflict = OnConflictStrategy.REPLACE)
+        fun upsert(stats: List<ProbeStatsEntity>)
+
+        @Query("DELETE FROM probe_stats WHERE profileId NOT IN (SELECT id FROM proxy_entities)")
+        fun deleteOrphans(): Int
+
+    }
+
+}
@@ -23,6 +23,7 @@ import android.database.sqlite.SQLiteCantOpenDatabaseException
 import io.nekohasekai.sagernet.R
 import io.nekohasekai.sagernet.aidl.TrafficStats
 import io.nekohasekai.sagernet.fmt.AbstractBean
+import io.nekohasekai.sagernet.fmt.RuleSets
 import io.nekohasekai.sagernet.ktx.Logs
 import io.nekohasekai.sagernet.ktx.app
 import io.nekohasekai.sagernet.ktx.applyDefaultValues
@@ -36,6 +37,7 @@ object ProfileManager {
 
     interface Listener {
         suspend fun onAdd(profile: ProxyEntity)
+        suspend fun onAdd(profiles: List<ProxyEntity>)
         suspend fun onUpdated(profileId: Long, trafficStats: TrafficStats)
         suspend fun onUpdated(profile: ProxyEntity)
         suspend fun onRemoved(groupId: Long, profileId: Long)
@@ -98,13 +100,35 @@ object ProfileManager {
         val profile = ProxyEntity(groupId = groupId).apply {
             id = 0
             putBean(bean)
-            userOrder = SagerDatabase.proxyDao.nextOrder(groupId) ?: 1
+            userOrder = SagerDatabase.proxyDao.nextOrder(groupId) ?: ProxyEntity.ORDER_GAP
         }
         profile.id = SagerDatabase.proxyDao.addProxy(profile)
         iterator { onAdd(profile) }
         return profile
     }
 
+    suspend fun createProfiles(groupId: Long, beans: List<AbstractBean>): List<ProxyEntity> {
+        if (beans.isEmpty()) return listOf()
+        val profiles = SagerDatabase.runInTransaction {
+            var order = SagerDatabase.proxyDao.nextOrder(groupId) ?: ProxyEntity.ORDER_GAP
+            val profiles = beans.map { bean ->
+                bean.applyDefaultValues()
+                ProxyEntity(groupId = groupId).apply {
+                    putBean(bean)
+                    userOrder = order
+                    order += ProxyEntity.ORDER_GAP
+                }
+            }
+            val ids = SagerDatabase.proxyDao.insert(profiles)
+            for (index in profiles.indices) {
+                profiles[index].id = ids[index]
+            }
+            profiles
+        }
+        iterator { onAdd(profiles) }
+        return profiles
+    }
+
     suspend fun updateProfile(profile: ProxyEntity) {
         SagerDatabase.proxyDao.updateProxy(profile)
         iterator { onUpdated(profile) }
@@ -124,9 +148,6 @@ object ProfileManager {
             DataStore.selectedProxy = 0L
         }
         iterator { onRemoved(groupId, profileId) }
-        if (SagerDatabase.proxyDao.countByGroup(groupId) > 1) {
-            GroupManager.rearrange(groupId)
-        }
     }
 
     suspend fun deleteProfile2(groupId: Long, profileId: Long) {
@@ -175,6 +196,7 @@ object ProfileManager {
     suspend fun createRule(rule: RuleEntity, post: Boolean = true): RuleEntity {
         rule.userOrder = SagerDatabase.rulesDao.nextOrder() ?: 1
         rule.id = SagerDatabase.rulesDao.createRule(rule)
+        RuleSets.update(rule)
         if (post) {
             ruleIterator { onAdd(rule) }
         }
@@ -183,16 +205,19 @@ object ProfileManager {
 
     suspend fun updateRule(rule: RuleEntity) {
         SagerDatabase.rulesDao.updateRule(rule)
+        RuleSets.update(rule)
         ruleIterator { onUpdated(rule) }
     }
 
     suspend fun deleteRule(ruleId: Long) {
         SagerDatabase.rulesDao.deleteById(ruleId)
+        RuleSets.delete(ruleId)
         ruleIterator { onRemoved(ruleId) }
     }
 
     suspend fun deleteRules(rules: List<RuleEntity>) {
         SagerDatabase.rulesDao.deleteRules(rules)
+        rules.forEach { RuleSets.delete(it.id) }
         ruleIterator {
             rules.forEach {
                 onRemoved(it.id)
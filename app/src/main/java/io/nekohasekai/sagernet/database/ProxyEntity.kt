@@ -33,6 +33,7 @@ import io.nekohasekai.sagernet.fmt.Serializable
 import io.nekohasekai.sagernet.fmt.brook.BrookBean
 import io.nekohasekai.sagernet.fmt.brook.toUri
 import io.nekohasekai.sagernet.fmt.buildV2RayConfig
+import io.nekohasekai.sagernet.fmt.gson.prettyJson
 import io.nekohasekai.sagernet.fmt.http.HttpBean
 import io.nekohasekai.sagernet.fmt.http.toUri
 import io.nekohasekai.sagernet.fmt.hysteria.HysteriaBean
@@ -80,6 +81,7 @@ import io.nekohasekai.sagernet.ktx.Logs
 import io.nekohasekai.sagernet.ktx.app
 import io.nekohasekai.sagernet.ktx.applyDefaultValues
 import io.nekohasekai.sagernet.ui.profile.*
+import io.nekohasekai.sagernet.utils.PortAllocator
 
 @Entity(
     tableName = "proxy_entities", indices = [Index("groupId", name = "groupId")]
@@ -95,6 +97,12 @@ data class ProxyEntity(
     var ping: Int = 0,
     var uuid: String = "",
     var error: String? = null,
+    @ColumnInfo(defaultValue = "0") var speed: Long = 0L,
+    @ColumnInfo(defaultValue = "0") var speedTtfb: Int = 0,
+    @ColumnInfo(defaultValue = "0") var speedDeviation: Long = 0L,
+    // same codes as status, kept apart so a speed test does not touch the latency result
+    @ColumnInfo(defaultValue = "0") var speedStatus: Int = 0,
+    var speedError: String? = null,
     var socksBean: SOCKSBean? = null,
     var httpBean: HttpBean? = null,
     var ssBean: ShadowsocksBean? = null,
@@ -144,6 +152,9 @@ data class ProxyEntity(
         const val TYPE_BALANCER = 14
         const val TYPE_CONFIG = 13
 
+        // spacing of userOrder keys, a move takes the midpoint of its new neighbours
+        const val ORDER_GAP = 65536L
+
         val chainName by lazy { app.getString(R.string.proxy_chain) }
         val configName by lazy { app.getString(R.string.custom_config) }
         val balancerName by lazy { app.getString(R.string.balancer) }
@@ -175,7 +186,7 @@ data class ProxyEntity(
     }
 
     override fun serializeToBuffer(output: ByteBufferOutput) {
-        output.writeInt(0)
+        output.writeInt(2)
 
         output.writeLong(id)
         output.writeLong(groupId)
@@ -187,6 +198,11 @@ data class ProxyEntity(
         output.writeInt(ping)
         output.writeString(uuid)
         output.writeString(error)
+        output.writeLong(speed)
+        output.writeInt(speedTtfb)
+        output.writeLong(speedDeviation)
+        output.writeInt(speedStatus)
+        output.writeString(speedError)
 
         val data = KryoConverters.serialize(requireBean())
         output.writeVarInt(data.size, true)
@@ -208,6 +224,15 @@ data class ProxyEntity(
         ping = input.readInt()
         uuid = input.readString()
         error = input.readString()
+        if (version >= 1) {
+            speed = input.readLong()
+            speedTtfb = input.readInt()
+            speedDeviation = input.readLong()
+        }
+        if (version >= 2) {
+            speedStatus = input.readInt()
+            speedError = input.readString()
+        }
         putByteArray(input.readBytes(input.readVarInt(true)))
 
         dirty = input.readBoolean()
@@ -350,7 +375,8 @@ data class ProxyEntity(
         return with(requireBean()) {
             StringBuilder().apply {
                 val config = buildV2RayConfig(this@ProxyEntity)
-                append(config.config)
+                PortAllocator.recycle(config.ports)
+                append(prettyJson(config.config))
 
                 if (!config.index.all { it.chain.isEmpty() }) {
                     name = "${displayName()}.txt"
@@ -437,6 +463,11 @@ data class ProxyEntity(
         }
     }
 
+    /**
+     * A copy with a bean of its own, for writing per chain state onto the bean.
+     */
+    fun detach() = copy().putBean(requireBean().clone())
+
     fun putBean(bean: AbstractBean): ProxyEntity {
         socksBean = null
         httpBean = null
@@ -592,6 +623,11 @@ data class ProxyEntity(
         }
     }
 
+    /**
+     * Partial row for writing test results without touching the rest of the profile.
+     */
+    data class TestResult(val id: Long, val status: Int, val ping: Int, val error: String?)
+
     @androidx.room.Dao
     interface Dao {
 
@@ -604,15 +640,24 @@ data class ProxyEntity(
         @Query("SELECT * FROM proxy_entities WHERE groupId = :groupId ORDER BY userOrder")
         fun getByGroup(groupId: Long): List<ProxyEntity>
 
+        @Query("SELECT * FROM proxy_entities WHERE groupId IN (:groupIds) ORDER BY userOrder")
+        fun getByGroups(groupIds: List<Long>): List<ProxyEntity>
+
         @Query("SELECT * FROM proxy_entities WHERE id in (:proxyIds)")
         fun getEntities(proxyIds: List<Long>): List<ProxyEntity>
 
         @Query("SELECT COUNT(*) FROM proxy_entities WHERE groupId = :groupId")
         fun countByGroup(groupId: Long): Long
 
-        @Query("SELECT  MAX(userOrder) + 1 FROM proxy_entities WHERE groupId = :groupId")
+        @Query("SELECT MAX(userOrder) + $ORDER_GAP FROM proxy_entities WHERE groupId = :groupId")
         fun nextOrder(groupId: Long): Long?
 
+        @Query("UPDATE proxy_entities SET userOrder = :userOrder WHERE id = :proxyId")
+        fun updateOrder(proxyId: Long, userOrder: Long): Int
+
+        @Query("UPDATE proxy_entities SET tx = tx + :tx, rx = rx + :rx WHERE id = :proxyId")
+        fun addTraffic(proxyId: Long, tx: Long, rx: Long): Int
+
         @Query("SELECT * FROM proxy_entities WHERE id = :proxyId")
         fun getById(proxyId: Long): ProxyEntity?
 
@@ -637,11 +682,14 @@ data class ProxyEntity(
         @Update
         fun updateProxy(proxies: List<ProxyEntity>): Int
 
+        @Update(entity = ProxyEntity::class)
+        fun updateTestResults(results: List<TestResult>): Int
+
         @Insert
         fun addProxy(proxy: ProxyEntity): Long
 
         @Insert
-        fun insert(proxies: List<ProxyEntity>)
+        fun insert(proxies: List<ProxyEntity>): List<Long>
 
         @Query("DELETE FROM proxy_entities WHERE groupId = :groupId")
         fun deleteAll(groupId: Long): Int
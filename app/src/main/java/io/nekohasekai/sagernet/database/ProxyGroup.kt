@@ -39,7 +39,8 @@ data class ProxyGroup(
     var subscription: SubscriptionBean? = null,
     var order: Int = GroupOrder.ORIGIN,
     @ColumnInfo(defaultValue = (-1L).toString()) var frontProxy: Long = -1L,
-    @ColumnInfo(defaultValue = (-1L).toString()) var landingProxy: Long = -1L
+    @ColumnInfo(defaultValue = (-1L).toString()) var landingProxy: Long = -1L,
+    @ColumnInfo(defaultValue = "0") var healthCheckInterval: Int = 0
 ) : Serializable() {
 
     @Transient
@@ -59,7 +60,7 @@ data class ProxyGroup(
             subscription.serializeForShare(output)
 
         } else {
-            output.writeInt(0)
+            output.writeInt(1)
             output.writeLong(id)
             output.writeLong(userOrder)
             output.writeBoolean(ungrouped)
@@ -70,6 +71,7 @@ data class ProxyGroup(
                 subscription?.serializeToBuffer(output)
             }
             output.writeInt(order)
+            output.writeInt(healthCheckInterval)
         }
     }
 
@@ -99,6 +101,9 @@ data class ProxyGroup(
                 subscription.deserializeFromBuffer(input)
             }
             order = input.readInt()
+            if (version >= 1) {
+                healthCheckInterval = input.readInt()
+            }
         }
     }
 
@@ -121,6 +126,9 @@ data class ProxyGroup(
         @Query("SELECT * FROM proxy_groups WHERE id = :groupId")
         fun getById(groupId: Long): ProxyGroup?
 
+        @Query("SELECT * FROM proxy_groups WHERE id IN (:groupIds)")
+        fun getByIds(groupIds: List<Long>): List<ProxyGroup>
+
         @Query("DELETE FROM proxy_groups WHERE id = :groupId")
         fun deleteById(groupId: Long): Int
 
@@ -26,10 +26,11 @@ import io.nekohasekai.sagernet.fmt.KryoConverters
 import io.nekohasekai.sagernet.fmt.gson.GsonConverters
 import kotlinx.coroutines.GlobalScope
 import kotlinx.coroutines.launch
+import java.util.concurrent.Callable
 
 @Database(
-    entities = [ProxyGroup::class, ProxyEntity::class, RuleEntity::class, StatsEntity::class],
-    version = 24,
+    entities = [ProxyGroup::class, ProxyEntity::class, RuleEntity::class, StatsEntity::class, ProbeStatsEntity::class],
+    version = 26,
     autoMigrations = [AutoMigration(
         from = 12,
         to = 14,
@@ -66,6 +67,12 @@ import kotlinx.coroutines.launch
     ), AutoMigration(
         from = 23,
         to = 24,
+    ), AutoMigration(
+        from = 24,
+        to = 25,
+    ), AutoMigration(
+        from = 25,
+        to = 26,
     )]
 )
 @TypeConverters(value = [KryoConverters::class, GsonConverters::class])
@@ -100,6 +107,11 @@ abstract class SagerDatabase : RoomDatabase() {
         val proxyDao get() = instance.proxyDao()
         val rulesDao get() = instance.rulesDao()
         val statsDao get() = instance.statsDao()
+        val probeStatsDao get() = instance.probeStatsDao()
+
+        fun <T> runInTransaction(block: () -> T): T {
+            return instance.runInTransaction(Callable { block() })
+        }
 
     }
 
@@ -107,5 +119,6 @@ abstract class SagerDatabase : RoomDatabase() {
     abstract fun proxyDao(): ProxyEntity.Dao
     abstract fun rulesDao(): RuleEntity.Dao
     abstract fun statsDao(): StatsEntity.Dao
+    abstract fun probeStatsDao(): ProbeStatsEntity.Dao
 
 }
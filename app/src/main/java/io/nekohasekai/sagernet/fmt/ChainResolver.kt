@@ -0,0 +1,200 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2021 by nekohasekai <contact-sagernet@sekai.icu>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+
+package io.nekohasekai.sagernet.fmt
+
+import io.nekohasekai.sagernet.database.ProxyEntity
+import io.nekohasekai.sagernet.database.ProxyGroup
+import io.nekohasekai.sagernet.database.SagerDatabase
+import io.nekohasekai.sagernet.fmt.internal.BalancerBean
+import io.nekohasekai.sagernet.fmt.internal.ChainBean
+
+/**
+ * Resolves chains, balancers and group front / landing proxies for a config build.
+ *
+ * Every referenced profile and group is loaded with a few IN queries up front,
+ * resolved chains are memoized and circular chains are rejected. The config builder writes
+ * chain specific addresses onto the beans, so every returned entity is a detached copy.
+ */
+class ChainResolver {
+
+    private val entities = HashMap<Long, ProxyEntity>()
+    private val missing = HashSet<Long>()
+    private val groups = HashMap<Long, ProxyGroup?>()
+    private val groupMembers = HashMap<Long, List<ProxyEntity>>()
+    private val visited = HashSet<Long>()
+    private val resolved = HashMap<Long, List<ProxyEntity>>()
+    private val resolving = HashSet<Long>()
+
+    /**
+     * Member ids of every resolved balancer, in the probe score order used for the config.
+     */
+    val balancerOrder = LinkedHashMap<Long, List<Long>>()
+
+    fun prefetch(roots: List<ProxyEntity>, ids: Collection<Long> = listOf()) {
+        for (root in roots) {
+            if (root.id > 0L) entities.putIfAbsent(root.id, root)
+        }
+        var pending = roots + loadEntities(ids)
+        val members = HashSet<Long>()
+        while (pending.isNotEmpty()) {
+            val next = HashSet<Long>()
+            val groupIds = HashSet<Long>()
+            val balancerGroupIds = HashSet<Long>()
+            for (entity in pending) {
+                if (entity.id > 0L && !visited.add(entity.id)) continue
+                when (val bean = entity.requireBean()) {
+                    is ChainBean -> next.addAll(bean.proxies)
+                    is BalancerBean -> if (bean.type == BalancerBean.TYPE_LIST) {
+                        members.addAll(bean.proxies)
+                    } else {
+                        balancerGroupIds.add(bean.groupId)
+                    }
+                    else -> groupIds.add(entity.groupId)
+                }
+            }
+            for (group in loadGroups(groupIds)) {
+                if (group.frontProxy > 0L) members.add(group.frontProxy)
+                if (group.landingProxy > 0L) members.add(group.landingProxy)
+            }
+            loadGroupMembers(balancerGroupIds)
+            pending = loadEntities(next).filter { it.id !in visited }
+        }
+        loadEntities(members)
+    }
+
+    fun getEntity(id: Long): ProxyEntity? {
+        return loadEntities(listOf(id)).firstOrNull()?.detach()
+    }
+
+    fun resolve(entity: ProxyEntity): MutableList<ProxyEntity> {
+        val id = entity.id
+        if (id > 0L) resolved[id]?.let { list -> return list.mapTo(ArrayList()) { it.detach() } }
+        if (id > 0L && !resolving.add(id)) error("Circular reference detected in chain.")
+        try {
+            val list = resolve0(entity)
+            if (id > 0L) resolved[id] = list
+            return list.mapTo(ArrayList()) { it.detach() }
+        } finally {
+            resolving.remove(id)
+        }
+    }
+
+    private fun resolve0(entity: ProxyEntity): List<ProxyEntity> {
+        val bean = entity.requireBean()
+        if (bean is ChainBean) {
+            val beansMap = loadEntities(bean.proxies).associateBy { it.id }
+            val beanList = ArrayList<ProxyEntity>()
+            for ((index, proxyId) in bean.proxies.withIndex()) {
+                val item = beansMap[proxyId] ?: continue
+                if (!item.requireBean().canMapping() && index != 0) error("Some configurations are incompatible with chain.")
+                beanList.addAll(resolve(item))
+            }
+            return beanList.asReversed()
+        } else if (bean is BalancerBean) {
+            val beans = if (bean.type == BalancerBean.TYPE_LIST) {
+                loadEntities(bean.proxies)
+            } else {
+                loadGroupMembers(listOf(bean.groupId))[bean.groupId] ?: listOf()
+            }
+
+            val beanList = ArrayList<ProxyEntity>()
+            for (item in beans.distinctBy { it.id }) {
+                if (item.id == entity.id) continue
+                when (item.type) {
+                    ProxyEntity.TYPE_BALANCER -> error("Nested balancers are not supported")
+                    ProxyEntity.TYPE_CHAIN -> error("Chain is incompatible with balancer")
+                }
+                beanList.add(item)
+            }
+            // best first, it is also the fallback when every outbound is dead
+            val scores = beanList.map { it.id }.chunked(QUERY_CHUNK).flatMap {
+                SagerDatabase.probeStatsDao.getByIds(it)
+            }.associate { it.profileId to it.score }
+            if (scores.isNotEmpty()) beanList.sortBy { scores[it.id] ?: Int.MAX_VALUE }
+            balancerOrder[entity.id] = beanList.map { it.id }
+            return beanList
+        }
+
+        val list = mutableListOf(entity)
+
+        val group = loadGroups(listOf(entity.groupId)).firstOrNull()
+        val frontProxy = group?.frontProxy?.let { loadEntities(listOf(it)).firstOrNull() }
+        val landingProxy = group?.landingProxy?.let { loadEntities(listOf(it)).firstOrNull() }
+        if (frontProxy != null) {
+            list.add(frontProxy)
+        }
+        if (landingProxy != null) {
+            list.add(0, landingProxy)
+        }
+        return list
+    }
+
+    /**
+     * Returns the known entities of the given ids in the same order,
+     * querying only the ones not loaded yet.
+     */
+    private fun loadEntities(ids: Collection<Long>): List<ProxyEntity> {
+        val unknown = ids.filter { it > 0L && it !in entities && it !in missing }.distinct()
+        for (chunk in unknown.chunked(QUERY_CHUNK)) {
+            for (entity in SagerDatabase.proxyDao.getEntities(chunk)) {
+                entities[entity.id] = entity
+            }
+        }
+        for (id in unknown) {
+            if (id !in entities) missing.add(id)
+        }
+        return ids.mapNotNull { entities[it] }
+    }
+
+    private fun loadGroups(groupIds: Collection<Long>): List<ProxyGroup> {
+        val unknown = groupIds.filter { !groups.containsKey(it) }.distinct()
+        for (chunk in unknown.chunked(QUERY_CHUNK)) {
+            for (group in SagerDatabase.groupDao.getByIds(chunk)) {
+                groups[group.id] = group
+            }
+        }
+        for (groupId in unknown) {
+            groups.putIfAbsent(groupId, null)
+        }
+        return groupIds.mapNotNull { groups[it] }
+    }
+
+    private fun loadGroupMembers(groupIds: Collection<Long>): Map<Long, List<ProxyEntity>> {
+        val unknown = groupIds.filter { it !in groupMembers }.distinct()
+        for (chunk in unknown.chunked(QUERY_CHUNK)) {
+            val byGroup = SagerDatabase.proxyDao.getByGroups(chunk).groupBy { it.groupId }
+            for (groupId in chunk) {
+                val members = byGroup[groupId] ?: listOf()
+                for (entity in members) {
+                    entities.putIfAbsent(entity.id, entity)
+                }
+                groupMembers[groupId] = members
+            }
+        }
+        return groupMembers
+    }
+
+    companion object {
+        // stay below SQLITE_MAX_VARIABLE_NUMBER
+        private const val QUERY_CHUNK = 900
+    }
+
+}
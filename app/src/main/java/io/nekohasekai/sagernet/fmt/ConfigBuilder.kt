@@ -25,7 +25,8 @@ import android.net.Uri
 import android.os.Build
 import android.provider.Settings
 import cn.hutool.core.codec.Base64
-import cn.hutool.json.JSONArray
+import cn.hutool.json.JSON
+import cn.hutool.json.JSONNull
 import cn.hutool.json.JSONObject
 import com.github.shadowsocks.plugin.PluginConfiguration
 import com.github.shadowsocks.plugin.PluginManager
@@ -40,11 +41,11 @@ import io.nekohasekai.sagernet.database.ProxyEntity
 import io.nekohasekai.sagernet.database.SagerDatabase
 import io.nekohasekai.sagernet.fmt.V2rayBuildResult.IndexEntity
 import io.nekohasekai.sagernet.fmt.gson.gson
+import io.nekohasekai.sagernet.fmt.gson.toConfigJson
 import io.nekohasekai.sagernet.fmt.http.HttpBean
 import io.nekohasekai.sagernet.fmt.hysteria.HysteriaBean
 import io.nekohasekai.sagernet.fmt.hysteria2.Hysteria2Bean
 import io.nekohasekai.sagernet.fmt.internal.BalancerBean
-import io.nekohasekai.sagernet.fmt.internal.ChainBean
 import io.nekohasekai.sagernet.fmt.internal.ConfigBean
 import io.nekohasekai.sagernet.fmt.juicity.JuicityBean
 import io.nekohasekai.sagernet.fmt.shadowsocks.ShadowsocksBean
@@ -111,13 +112,15 @@ import io.nekohasekai.sagernet.ktx.isIpAddress
 import io.nekohasekai.sagernet.ktx.isValidHysteriaMultiPort
 import io.nekohasekai.sagernet.ktx.joinHostPort
 import io.nekohasekai.sagernet.ktx.listByLineOrComma
-import io.nekohasekai.sagernet.ktx.mkPort
 import io.nekohasekai.sagernet.ktx.toHysteriaPort
 import io.nekohasekai.sagernet.utils.PackageCache
+import io.nekohasekai.sagernet.utils.PortAllocator
+import java.io.StringWriter
 
 const val TAG_SOCKS = "socks"
 const val TAG_HTTP = "http"
 const val TAG_TRANS = "trans"
+const val TAG_TEST = "test"
 
 const val TAG_AGENT = "proxy"
 const val TAG_DIRECT = "direct"
@@ -131,6 +134,8 @@ const val TAG_DNS_DIRECT = "dns-direct"
 
 const val LOCALHOST = "127.0.0.1"
 
+fun testTag(profileId: Long) = "$TAG_TEST-$profileId"
+
 class V2rayBuildResult(
     var config: String,
     var index: List<IndexEntity>,
@@ -146,12 +151,41 @@ class V2rayBuildResult(
     var observatoryTags: Set<String>,
     val dumpUid: Boolean,
     val alerts: List<Pair<Int, String>>,
+    val ports: List<Int> = listOf(),
 ) {
+    val statsLayout = StatsLayout.of(outboundTags, outboundTagsCurrent, outboundTagsAll)
+
     data class IndexEntity(var isBalancer: Boolean, var chain: LinkedHashMap<Int, ProxyEntity>)
 }
 
+/**
+ * With [testTargets], builds a single test config routing the inbound tag [testTag]
+ * of every target (and of [proxy]) to its own outbound.
+ * With [testSocksPort], a test config also gets a local socks inbound on that port,
+ * which reaches loopback addresses directly instead of through the proxy.
+ */
 fun buildV2RayConfig(
-    proxy: ProxyEntity, forTest: Boolean = false
+    proxy: ProxyEntity,
+    forTest: Boolean = false,
+    testTargets: List<ProxyEntity> = listOf(),
+    testSocksPort: Int = 0
+): V2rayBuildResult {
+    val ports = ArrayList<Int>()
+    try {
+        return buildV2RayConfig0(proxy, forTest, testTargets, testSocksPort, ports)
+    } catch (e: Throwable) {
+        // only a built config hands its ports over, the test socks port stays with the caller
+        PortAllocator.recycle(ports.filter { it != testSocksPort })
+        throw e
+    }
+}
+
+private fun buildV2RayConfig0(
+    proxy: ProxyEntity,
+    forTest: Boolean,
+    testTargets: List<ProxyEntity>,
+    testSocksPort: Int,
+    ports: ArrayList<Int>
 ): V2rayBuildResult {
 
     val outboundTags = ArrayList<String>()
@@ -159,63 +193,37 @@ fun buildV2RayConfig(
     val outboundTagsAll = HashMap<String, ProxyEntity>()
     val globalOutbounds = ArrayList<String>()
 
-    fun ProxyEntity.resolveChain(): MutableList<ProxyEntity> {
-        val bean = requireBean()
-        if (bean is ChainBean) {
-            val beans = SagerDatabase.proxyDao.getEntities(bean.proxies)
-            val beansMap = beans.associateBy { it.id }
-            val beanList = ArrayList<ProxyEntity>()
-            for ((index, proxyId) in bean.proxies.withIndex()) {
-                val item = beansMap[proxyId] ?: continue
-                if (!item.requireBean().canMapping() && index != 0) error("Some configurations are incompatible with chain.")
-                beanList.addAll(item.resolveChain())
-            }
-            return beanList.asReversed()
-        } else if (bean is BalancerBean) {
-            val beans = if (bean.type == BalancerBean.TYPE_LIST) {
-                SagerDatabase.proxyDao.getEntities(bean.proxies)
-            } else {
-                SagerDatabase.proxyDao.getByGroup(bean.groupId)
-            }
-
-            val beansMap = beans.associateBy { it.id }
-            val beanList = ArrayList<ProxyEntity>()
-            for (proxyId in beansMap.keys) {
-                val item = beansMap[proxyId] ?: continue
-                if (item.id == id) continue
-                when (item.type) {
-                    ProxyEntity.TYPE_BALANCER -> error("Nested balancers are not supported")
-                    ProxyEntity.TYPE_CHAIN -> error("Chain is incompatible with balancer")
-                }
-                beanList.add(item)
-            }
-            return beanList
-        }
-
-        val list = mutableListOf(this)
-
-        val groupId = SagerDatabase.groupDao.getById(groupId)
-        val frontProxy = groupId?.frontProxy?.let { SagerDatabase.proxyDao.getById(it) }
-        val landingProxy = groupId?.landingProxy?.let { SagerDatabase.proxyDao.getById(it) }
-        if (frontProxy != null) {
-            list.add(frontProxy)
-        }
-        if (landingProxy != null) {
-            list.add(0, landingProxy)
-        }
-        return list
-    }
-
-    val proxies = proxy.resolveChain()
+    val chainResolver = ChainResolver()
     val extraRules = if (forTest) listOf() else SagerDatabase.rulesDao.enabledRules()
-    val extraProxies = if (forTest) mapOf() else SagerDatabase.proxyDao.getEntities(extraRules.mapNotNull { rule ->
+    val extraOutbounds = if (testTargets.isNotEmpty()) {
+        testTargets.map { it.id }.filter { it != proxy.id }.distinct()
+    } else extraRules.mapNotNull { rule ->
         rule.outbound.takeIf { it > 0 && it != proxy.id }
-    }.toHashSet().toList()).associate {
+    }.distinct()
+    chainResolver.prefetch(listOf(proxy) + testTargets, extraOutbounds)
+
+    val proxies = chainResolver.resolve(proxy)
+    val extraEntities = extraOutbounds.mapNotNull { chainResolver.getEntity(it) }
+    val extraProxies = extraEntities.associate {
         (it.id to ((it.type == ProxyEntity.TYPE_BALANCER) to lazy {
             it.balancerBean
-        })) to it.resolveChain()
+        })) to chainResolver.resolve(it)
+    }
+
+    val cacheKey = if (testTargets.isNotEmpty() || testSocksPort > 0) null else ConfigCache.fingerprint(
+        forTest,
+        listOf(proxy) + proxies + extraEntities + extraProxies.values.flatten(),
+        extraRules,
+        chainResolver.balancerOrder
+    )
+    ConfigCache.get(cacheKey)?.let {
+        RuleSets.restore(it.config, extraRules)
+        return it
     }
 
+    fun allocatePort() = PortAllocator.allocate().also { ports.add(it) }
+    if (testSocksPort > 0) ports.add(testSocksPort)
+
     val allowAccess = DataStore.allowAccess
     val bind = if (!forTest && allowAccess) "0.0.0.0" else LOCALHOST
 
@@ -283,10 +291,10 @@ fun buildV2RayConfig(
         }
         inbounds = mutableListOf()
 
-        if (!forTest) inbounds.add(InboundObject().apply {
+        if (!forTest || testSocksPort > 0) inbounds.add(InboundObject().apply {
             tag = TAG_SOCKS
             listen = bind
-            port = DataStore.socksPort
+            port = if (forTest) testSocksPort else DataStore.socksPort
             protocol = "socks"
             settings = LazyInboundConfigurationObject(this,
                 SocksInboundConfigurationObject().apply {
@@ -372,6 +380,23 @@ fun buildV2RayConfig(
 
             rules = mutableListOf()
 
+            if (testSocksPort > 0) {
+                // a stand-in server on loopback is dialed locally, so a speed test can run offline,
+                // such a run does not go through the profile and only checks the measurement
+                rules.add(RoutingObject.RuleObject().apply {
+                    type = "field"
+                    inboundTag = listOf(TAG_SOCKS)
+                    domain = listOf("full:localhost")
+                    outboundTag = TAG_DIRECT
+                })
+                rules.add(RoutingObject.RuleObject().apply {
+                    type = "field"
+                    inboundTag = listOf(TAG_SOCKS)
+                    ip = listOf("127.0.0.0/8", "::1/128")
+                    outboundTag = TAG_DIRECT
+                })
+            }
+
             val wsRules = HashMap<String, RoutingObject.RuleObject>()
 
             for (proxyEntity in proxies) {
@@ -471,7 +496,7 @@ fun buildV2RayConfig(
                     var currentDomainStrategy = outboundDomainStrategy
 
                     if (proxyEntity.needExternal()) {
-                        val localPort = mkPort()
+                        val localPort = allocatePort()
                         chainMap[localPort] = proxyEntity
                         if (bean is ShadowTLSBean) {
                             currentOutbound.apply {
@@ -1132,7 +1157,7 @@ fun buildV2RayConfig(
                 }
 
                 if (proxyEntity.needExternal() && !isBalancer && index != profileList.lastIndex) {
-                    val mappingPort = mkPort()
+                    val mappingPort = allocatePort()
                     bean.finalAddress = LOCALHOST
                     bean.finalPort = mappingPort
                     bean.isChain = true
@@ -1162,7 +1187,7 @@ fun buildV2RayConfig(
                         pastInboundTag = tag
                     })
                 } else if (bean.canMapping() && proxyEntity.needExternal()) {
-                    val mappingPort = mkPort()
+                    val mappingPort = allocatePort()
                     bean.finalAddress = LOCALHOST
                     bean.finalPort = mappingPort
 
@@ -1283,8 +1308,24 @@ fun buildV2RayConfig(
             }
         }
 
+        if (testTargets.isNotEmpty()) {
+            routing.rules.add(RoutingObject.RuleObject().apply {
+                type = "field"
+                inboundTag = listOf(testTag(proxy.id))
+                if (mainIsBalancer) balancerTag = "balancer-$TAG_AGENT" else outboundTag = tagProxy
+            })
+            for ((id, tag) in tagMap) {
+                routing.rules.add(RoutingObject.RuleObject().apply {
+                    type = "field"
+                    inboundTag = listOf(testTag(id))
+                    if (balancerMap.containsKey(id)) balancerTag = balancerMap[id] else outboundTag = tag
+                })
+            }
+        }
+
         val isVpn = DataStore.serviceMode == Key.MODE_VPN
 
+        val userRulesStart = routing.rules.size
         for (rule in extraRules) {
             if (rule.packages.isNotEmpty()) {
                 dumpUid = true
@@ -1333,10 +1374,10 @@ fun buildV2RayConfig(
                 }
 
                 if (rule.domains.isNotBlank()) {
-                    domain = rule.domains.listByLineOrComma()
+                    domain = RuleSets.domains(rule)
                 }
                 if (rule.ip.isNotBlank()) {
-                    ip = rule.ip.listByLineOrComma()
+                    ip = RuleSets.ips(rule)
                 }
                 if (rule.port.isNotBlank()) {
                     port = rule.port
@@ -1405,18 +1446,23 @@ fun buildV2RayConfig(
             }
 
         }
+        routing.rules.subList(userRulesStart, routing.rules.size).apply {
+            val compiled = RuleCompiler.compile(this)
+            clear()
+            addAll(compiled)
+        }
 
         if (requireWs) {
             browserForwarder = BrowserForwarderObject().apply {
                 listenAddr = LOCALHOST
-                listenPort = mkPort()
+                listenPort = allocatePort()
             }
         }
 
         if (requireSh) {
             browserDialer = BrowserDialerObject().apply {
                 listenAddr = LOCALHOST
-                listenPort = mkPort()
+                listenPort = allocatePort()
             }
         }
 
@@ -1554,12 +1600,12 @@ fun buildV2RayConfig(
         if (enableDnsRouting) {
             for (bypassRule in extraRules.filter { it.isBypassRule() }) {
                 if (bypassRule.domains.isNotBlank()) {
-                    bypassDomain.addAll(bypassRule.domains.listByLineOrComma())
+                    bypassDomain.addAll(RuleSets.domains(bypassRule))
                 }
             }
             for (proxyRule in extraRules.filter { it.isProxyRule() }) {
                 if (proxyRule.domains.isNotBlank()) {
-                    proxyDomain.addAll(proxyRule.domains.listByLineOrComma())
+                    proxyDomain.addAll(RuleSets.domains(proxyRule))
                 }
             }
         }
@@ -1753,7 +1799,7 @@ fun buildV2RayConfig(
         if (trafficStatistics) stats = emptyMap()
 
         result = V2rayBuildResult(
-            gson.toJson(this),
+            toConfigJson(this),
             indexMap,
             requireWs,
             if (requireWs) browserForwarder.listenPort else 0,
@@ -1766,10 +1812,12 @@ fun buildV2RayConfig(
             rootObserver?.tag ?: "",
             rootObserver?.settings?.subjectSelector ?: HashSet(),
             dumpUid,
-            alerts
+            alerts,
+            ports
         )
     }
 
+    ConfigCache.put(cacheKey, result)
     return result
 
 }
@@ -1829,7 +1877,7 @@ fun buildCustomConfig(proxy: ProxyEntity, port: Int): V2rayBuildResult {
         config["browserForwarder"] = JSONObject(gson.toJson(BrowserForwarderObject().apply {
             requireWs = true
             listenAddr = LOCALHOST
-            listenPort = mkPort()
+            listenPort = PortAllocator.allocate()
             wsPort = listenPort
         }))
     }
@@ -1840,7 +1888,7 @@ fun buildCustomConfig(proxy: ProxyEntity, port: Int): V2rayBuildResult {
         config["browserDialer"] = JSONObject(gson.toJson(BrowserDialerObject().apply {
             requireSh = true
             listenAddr = LOCALHOST
-            listenPort = mkPort()
+            listenPort = PortAllocator.allocate()
             shPort = listenPort
         }))
     } */
@@ -1888,15 +1936,40 @@ fun buildCustomConfig(proxy: ProxyEntity, port: Int): V2rayBuildResult {
     }
 
     inbounds.forEach { it.init() }
-    config["inbounds"] = JSONArray(inbounds.map { JSONObject(gson.toJson(it)) })
     if (flushOutbounds) {
         outbounds!!.forEach { it.init() }
-        config["outbounds"] = JSONArray(outbounds.map { JSONObject(gson.toJson(it)) })
     }
 
+    // write the typed inbounds / outbounds straight into the output
+    // instead of converting them back into hutool trees
+    val output = StringWriter()
+    gson.newJsonWriter(output).use { writer ->
+        fun writeAll(list: List<Any>, type: Class<*>) {
+            writer.beginArray()
+            for (item in list) gson.toJson(item, type, writer)
+            writer.endArray()
+        }
+
+        writer.beginObject()
+        if (!config.containsKey("inbounds")) {
+            writer.name("inbounds")
+            writeAll(inbounds, InboundObject::class.java)
+        }
+        for ((key, value) in config) {
+            writer.name(key)
+            when {
+                key == "inbounds" -> writeAll(inbounds, InboundObject::class.java)
+                key == "outbounds" && flushOutbounds -> writeAll(outbounds!!, OutboundObject::class.java)
+                value == null || value is JSONNull -> writer.nullValue()
+                value is JSON -> writer.jsonValue(value.toString())
+                else -> gson.toJson(value, value.javaClass, writer)
+            }
+        }
+        writer.endObject()
+    }
 
     return V2rayBuildResult(
-        config.toStringPretty(),
+        output.toString(),
         emptyList(),
         false, // requireWs
         0, // wsPort
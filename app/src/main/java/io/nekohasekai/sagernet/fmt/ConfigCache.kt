@@ -0,0 +1,368 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2021 by nekohasekai <contact-sagernet@sekai.icu>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+
+package io.nekohasekai.sagernet.fmt
+
+import com.esotericsoftware.kryo.io.ByteBufferInput
+import com.esotericsoftware.kryo.io.ByteBufferOutput
+import io.nekohasekai.sagernet.BuildConfig
+import io.nekohasekai.sagernet.Key
+import io.nekohasekai.sagernet.SagerNet
+import io.nekohasekai.sagernet.database.ProxyEntity
+import io.nekohasekai.sagernet.database.RuleEntity
+import io.nekohasekai.sagernet.database.SagerDatabase
+import io.nekohasekai.sagernet.database.preference.PublicDatabase
+import io.nekohasekai.sagernet.ktx.Logs
+import io.nekohasekai.sagernet.ktx.byteBuffer
+import io.nekohasekai.sagernet.ktx.readStringList
+import io.nekohasekai.sagernet.ktx.readStringSet
+import io.nekohasekai.sagernet.ktx.writeStringList
+import io.nekohasekai.sagernet.utils.PackageCache
+import io.nekohasekai.sagernet.utils.PortAllocator
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.IOException
+import java.security.MessageDigest
+import java.util.Locale
+
+/**
+ * Cache of [V2rayBuildResult] keyed by a fingerprint of everything the build reads:
+ * the involved profiles, the enabled rules and the settings.
+ *
+ * Kept in memory and under noBackupFilesDir, so a restart of the service process can skip
+ * the config generation as well. Only the config and the profile ids are kept, the profiles are
+ * read again on a hit. A cached result is only reused if its local ports are still free.
+ */
+object ConfigCache {
+
+    private const val VERSION = 3
+    private const val MEMORY_ENTRIES = 16
+    private const val DISK_ENTRIES = 256
+
+    // changed without affecting the generated config
+    private val ignoredKeys = setOf(
+        Key.PROFILE_ID, Key.PROFILE_GROUP, Key.PROFILE_CURRENT, Key.PROFILE_STARTED,
+        Key.PLUGIN_CACHE
+    )
+
+    private val memory = object : LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Entry>?): Boolean {
+            return size > MEMORY_ENTRIES
+        }
+    }
+
+    private val cacheDir by lazy {
+        File(SagerNet.deviceStorage.noBackupFilesDir, "config_cache").apply { mkdirs() }
+    }
+
+    /**
+     * Returns null if the config depends on state that can not be fingerprinted,
+     * e.g. the location permission checked by SSID rules.
+     */
+    fun fingerprint(
+        forTest: Boolean,
+        entities: List<ProxyEntity>,
+        rules: List<RuleEntity>,
+        balancerOrder: Map<Long, List<Long>>,
+    ): String? {
+        if (rules.any { it.ssid.isNotBlank() }) return null
+
+        val out = ByteArrayOutputStream()
+        val buffer = out.byteBuffer()
+        buffer.writeInt(VERSION)
+        buffer.writeInt(BuildConfig.VERSION_CODE)
+        buffer.writeBoolean(forTest)
+        // alert messages are localized
+        buffer.writeString(Locale.getDefault().toLanguageTag())
+
+        buffer.writeInt(entities.size)
+        for (entity in entities) {
+            buffer.writeLong(entity.id)
+            buffer.writeLong(entity.groupId)
+            buffer.writeInt(entity.type)
+            val bean = KryoConverters.serialize(entity.requireBean())
+            buffer.writeVarInt(bean.size, true)
+            buffer.writeBytes(bean)
+        }
+
+        // changes with the health check scores, not with the entities
+        buffer.writeInt(balancerOrder.size)
+        for ((balancer, members) in balancerOrder) {
+            buffer.writeLong(balancer)
+            buffer.writeInt(members.size)
+            for (member in members) buffer.writeLong(member)
+        }
+
+        buffer.writeInt(rules.size)
+        for (rule in rules) {
+            buffer.writeString(rule.toString())
+            if (rule.packages.isNotEmpty()) {
+                PackageCache.awaitLoadSync()
+                for (packageName in rule.packages) {
+                    buffer.writeInt(PackageCache[packageName] ?: -1)
+                }
+            }
+        }
+
+        val settings = PublicDatabase.kvPairDao.all()
+            .filter { it.key !in ignoredKeys }
+            .sortedBy { it.key }
+        buffer.writeInt(settings.size)
+        for (pair in settings) {
+            buffer.writeString(pair.key)
+            buffer.writeInt(pair.valueType)
+            buffer.writeVarInt(pair.value.size, true)
+            buffer.writeBytes(pair.value)
+        }
+        buffer.flush()
+
+        return MessageDigest.getInstance("SHA-256").digest(out.toByteArray())
+            .joinToString("") { "%02x".format(it) }
+    }
+
+    fun get(key: String?): V2rayBuildResult? {
+        if (key == null) return null
+        val entry = synchronized(memory) { memory[key] } ?: readFromDisk(key)?.also {
+            synchronized(memory) { memory[key] = it }
+        } ?: return null
+        if (!PortAllocator.claim(entry.ports)) {
+            Logs.d("Cached config $key skipped: port in use")
+            return null
+        }
+        val result = entry.toResult()
+        if (result == null) {
+            Logs.d("Cached config $key skipped: profile deleted")
+            PortAllocator.recycle(entry.ports)
+        }
+        return result
+    }
+
+    fun put(key: String?, result: V2rayBuildResult) {
+        if (key == null) return
+        val entry = Entry(result)
+        synchronized(memory) { memory[key] = entry }
+        try {
+            writeToDisk(key, entry)
+        } catch (e: IOException) {
+            Logs.w(e)
+        }
+    }
+
+    /**
+     * A profile of a cached result, the profile itself is read again on every hit
+     * so that a result never carries rows older than the database.
+     */
+    private class Ref(val id: Long, val isChain: Boolean, val finalAddress: String?, val finalPort: Int) {
+        constructor(entity: ProxyEntity) : this(entity.id,
+            entity.requireBean().isChain,
+            entity.requireBean().finalAddress,
+            entity.requireBean().finalPort)
+
+        fun bind(entities: Map<Long, ProxyEntity>): ProxyEntity {
+            // a profile may be in several chains, each with its own addresses
+            return entities.getValue(id).detach().also {
+                // set by the config builder for plugins
+                val bean = it.requireBean()
+                bean.isChain = isChain
+                bean.finalAddress = finalAddress
+                bean.finalPort = finalPort
+            }
+        }
+    }
+
+    private class Entry(
+        val config: String,
+        val index: List<Pair<Boolean, List<Pair<Int, Ref>>>>,
+        val requireWs: Boolean,
+        val wsPort: Int,
+        val requireSh: Boolean,
+        val shPort: Int,
+        val outboundTags: List<String>,
+        val outboundTagsCurrent: List<String>,
+        val outboundTagsAll: List<Pair<String, Ref>>,
+        val bypassTag: String,
+        val observerTag: String,
+        val observatoryTags: Set<String>,
+        val dumpUid: Boolean,
+        val alerts: List<Pair<Int, String>>,
+        val ports: List<Int>,
+    ) {
+        constructor(result: V2rayBuildResult) : this(result.config,
+            result.index.map { index -> index.isBalancer to index.chain.map { (port, entity) -> port to Ref(entity) } },
+            result.requireWs,
+            result.wsPort,
+            result.requireSh,
+            result.shPort,
+            result.outboundTags.toList(),
+            result.outboundTagsCurrent.toList(),
+            result.outboundTagsAll.map { (tag, entity) -> tag to Ref(entity) },
+            result.bypassTag,
+            result.observerTag,
+            result.observatoryTags.toSet(),
+            result.dumpUid,
+            result.alerts.toList(),
+            result.ports.toList())
+
+        /**
+         * A new result for every hit, with the profiles read from the database,
+         * or null if one of them was deleted.
+         */
+        fun toResult(): V2rayBuildResult? {
+            val ids = HashSet<Long>()
+            for ((_, chain) in index) chain.mapTo(ids) { it.second.id }
+            outboundTagsAll.mapTo(ids) { it.second.id }
+            val entities = SagerDatabase.proxyDao.getEntities(ids.toList()).associateBy { it.id }
+            if (entities.size != ids.size) return null
+            return V2rayBuildResult(config,
+                index.map { (isBalancer, chain) ->
+                    val entries = LinkedHashMap<Int, ProxyEntity>()
+                    for ((port, ref) in chain) entries[port] = ref.bind(entities)
+                    V2rayBuildResult.IndexEntity(isBalancer, entries)
+                },
+                requireWs,
+                wsPort,
+                requireSh,
+                shPort,
+                outboundTags.toMutableList(),
+                outboundTagsCurrent.toMutableList(),
+                outboundTagsAll.associate { (tag, ref) -> tag to ref.bind(entities) },
+                bypassTag,
+                observerTag,
+                observatoryTags.toHashSet(),
+                dumpUid,
+                alerts,
+                ports)
+        }
+    }
+
+    private fun readFromDisk(key: String): Entry? {
+        val file = File(cacheDir, key)
+        if (!file.isFile) return null
+        return try {
+            file.setLastModified(System.currentTimeMillis())
+            file.inputStream().byteBuffer().use { it.readEntry() }
+        } catch (e: Exception) {
+            Logs.w(e)
+            file.delete()
+            null
+        }
+    }
+
+    private fun writeToDisk(key: String, entry: Entry) {
+        val file = File(cacheDir, key)
+        val tmp = File(cacheDir, "$key.tmp")
+        tmp.outputStream().byteBuffer().use { it.writeEntry(entry) }
+        if (!tmp.renameTo(file)) {
+            tmp.delete()
+            return
+        }
+        val files = cacheDir.listFiles() ?: return
+        if (files.size > DISK_ENTRIES) {
+            files.sortedBy { it.lastModified() }.take(files.size - DISK_ENTRIES).forEach { it.delete() }
+        }
+    }
+
+    private fun ByteBufferOutput.writeRef(ref: Ref) {
+        writeLong(ref.id)
+        writeBoolean(ref.isChain)
+        writeString(ref.finalAddress)
+        writeInt(ref.finalPort)
+    }
+
+    private fun ByteBufferInput.readRef(): Ref {
+        return Ref(readLong(), readBoolean(), readString(), readInt())
+    }
+
+    private fun ByteBufferOutput.writeEntry(entry: Entry) {
+        writeInt(VERSION)
+        writeString(entry.config)
+        writeInt(entry.index.size)
+        for ((isBalancer, chain) in entry.index) {
+            writeBoolean(isBalancer)
+            writeInt(chain.size)
+            for ((port, ref) in chain) {
+                writeInt(port)
+                writeRef(ref)
+            }
+        }
+        writeBoolean(entry.requireWs)
+        writeInt(entry.wsPort)
+        writeBoolean(entry.requireSh)
+        writeInt(entry.shPort)
+        writeStringList(entry.outboundTags)
+        writeStringList(entry.outboundTagsCurrent)
+        writeInt(entry.outboundTagsAll.size)
+        for ((tag, ref) in entry.outboundTagsAll) {
+            writeString(tag)
+            writeRef(ref)
+        }
+        writeString(entry.bypassTag)
+        writeString(entry.observerTag)
+        writeStringList(entry.observatoryTags)
+        writeBoolean(entry.dumpUid)
+        writeInt(entry.alerts.size)
+        for ((type, message) in entry.alerts) {
+            writeInt(type)
+            writeString(message)
+        }
+        writeInt(entry.ports.size)
+        for (port in entry.ports) writeInt(port)
+    }
+
+    private fun ByteBufferInput.readEntry(): Entry? {
+        if (readInt() != VERSION) return null
+        val config = readString()
+        val index = List(readInt()) {
+            val isBalancer = readBoolean()
+            isBalancer to List(readInt()) { readInt() to readRef() }
+        }
+        val requireWs = readBoolean()
+        val wsPort = readInt()
+        val requireSh = readBoolean()
+        val shPort = readInt()
+        val outboundTags = readStringList()
+        val outboundTagsCurrent = readStringList()
+        val outboundTagsAll = List(readInt()) { readString() to readRef() }
+        val bypassTag = readString()
+        val observerTag = readString()
+        val observatoryTags = readStringSet()
+        val dumpUid = readBoolean()
+        val alerts = List(readInt()) { readInt() to readString() }
+        val ports = List(readInt()) { readInt() }
+        return Entry(
+            config,
+            index,
+            requireWs,
+            wsPort,
+            requireSh,
+            shPort,
+            outboundTags,
+            outboundTagsCurrent,
+            outboundTagsAll,
+            bypassTag,
+            observerTag,
+            observatoryTags,
+            dumpUid,
+            alerts,
+            ports
+        )
+    }
+
+}
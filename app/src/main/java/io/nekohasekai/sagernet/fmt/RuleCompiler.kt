@@ -0,0 +1,178 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2021 by nekohasekai <contact-sagernet@sekai.icu>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+
+package io.nekohasekai.sagernet.fmt
+
+import io.nekohasekai.sagernet.fmt.v2ray.V2RayConfig.RoutingObject.RuleObject
+import io.nekohasekai.sagernet.ktx.Logs
+import io.nekohasekai.sagernet.utils.Subnet
+import java.math.BigInteger
+import java.net.Inet4Address
+import java.net.Inet6Address
+
+/**
+ * Shrinks the routing rules generated from user rules without changing what they match:
+ * domain and ip lists are deduplicated, domains covered by a `domain:` entry of the same rule
+ * are dropped, CIDRs are aggregated, and adjacent rules that only differ in their domain
+ * (or only in their ip) list are merged.
+ */
+object RuleCompiler {
+
+    fun compile(rules: List<RuleObject>): List<RuleObject> {
+        val entriesBefore = rules.sumOf { (it.domain?.size ?: 0) + (it.ip?.size ?: 0) }
+
+        val compiled = ArrayList<RuleObject>(rules.size)
+        for (rule in rules) {
+            val last = compiled.lastOrNull()
+            if (last != null && canMerge(last, rule)) {
+                if (last.domain != null) last.domain = last.domain + rule.domain!!
+                if (last.ip != null) last.ip = last.ip + rule.ip!!
+            } else {
+                compiled.add(rule)
+            }
+        }
+        for (rule in compiled) {
+            rule.domain = rule.domain?.let { compileDomains(it) }
+            rule.ip = rule.ip?.let { compileIps(it) }
+        }
+
+        val entriesAfter = compiled.sumOf { (it.domain?.size ?: 0) + (it.ip?.size ?: 0) }
+        Logs.d("Compiled routing rules: ${rules.size} -> ${compiled.size} rules, $entriesBefore -> $entriesAfter domain / ip entries")
+        return compiled
+    }
+
+    // rule fields are ANDed, so only rules matching on the same kind of list can be merged
+    private fun canMerge(a: RuleObject, b: RuleObject): Boolean {
+        val sameKind = a.domain != null && b.domain != null && a.ip == null && b.ip == null ||
+                a.ip != null && b.ip != null && a.domain == null && b.domain == null
+        return sameKind &&
+                a.type == b.type &&
+                a.port == b.port &&
+                a.sourcePort == b.sourcePort &&
+                a.network == b.network &&
+                a.source == b.source &&
+                a.user == b.user &&
+                a.inboundTag == b.inboundTag &&
+                a.protocol == b.protocol &&
+                a.attrs == b.attrs &&
+                a.outboundTag == b.outboundTag &&
+                a.balancerTag == b.balancerTag &&
+                a.uidList == b.uidList &&
+                a.ssidList == b.ssidList &&
+                a.networkType == b.networkType &&
+                a.skipDomain == b.skipDomain
+    }
+
+    fun compileDomains(domains: List<String>): List<String> {
+        val unique = LinkedHashSet<String>()
+        for (domain in domains) {
+            val value = domain.trim()
+            if (value.isNotEmpty()) unique.add(value)
+        }
+        val suffixes = unique.filter { it.startsWith("domain:") }
+            .mapTo(HashSet()) { it.substringAfter(':').lowercase() }
+        if (suffixes.isEmpty()) return unique.toList()
+        return unique.filter { entry ->
+            val type = entry.substringBefore(':', "")
+            if (type != "domain" && type != "full") return@filter true
+            var host = entry.substringAfter(':').lowercase()
+            if (type == "full" && host in suffixes) return@filter false
+            while (true) {
+                val dot = host.indexOf('.')
+                if (dot < 0) break
+                host = host.substring(dot + 1)
+                if (host in suffixes) return@filter false
+            }
+            true
+        }
+    }
+
+    fun compileIps(ips: List<String>): List<String> {
+        val others = LinkedHashSet<String>()
+        val cidrs = ArrayList<Cidr>()
+        for (ip in ips) {
+            val value = ip.trim()
+            if (value.isEmpty()) continue
+            val subnet = Subnet.fromString(value)
+            // geoip:, ext: and mapped IPv6 addresses are kept as written
+            if (subnet == null || value.contains(':') && subnet.address is Inet4Address) {
+                others.add(value)
+            } else {
+                cidrs.add(Cidr(subnet))
+            }
+        }
+        return others.toList() + aggregate(cidrs).map { it.toString() }
+    }
+
+    private fun aggregate(cidrs: List<Cidr>): List<Cidr> {
+        val sorted = cidrs.sortedWith(compareBy<Cidr> { it.bits }.thenBy { it.network }.thenBy { it.prefix })
+        val result = ArrayList<Cidr>(sorted.size)
+        for (cidr in sorted) {
+            val last = result.lastOrNull()
+            if (last != null && last.contains(cidr)) continue
+            var current = cidr
+            while (true) {
+                val previous = result.lastOrNull() ?: break
+                current = previous.mergeWith(current) ?: break
+                result.removeAt(result.lastIndex)
+            }
+            result.add(current)
+        }
+        return result
+    }
+
+    private class Cidr(val bits: Int, val start: BigInteger, val prefix: Int) {
+
+        constructor(subnet: Subnet) : this(
+            subnet.address.address.size * 8,
+            BigInteger(1, subnet.address.address),
+            subnet.prefixSize
+        )
+
+        val network = start.shiftRight(bits - prefix).shiftLeft(bits - prefix)
+        val end: BigInteger = network + BigInteger.ONE.shiftLeft(bits - prefix) - BigInteger.ONE
+
+        fun contains(other: Cidr): Boolean {
+            return bits == other.bits && prefix <= other.prefix && network <= other.network && other.end <= end
+        }
+
+        // two halves of the same parent network
+        fun mergeWith(next: Cidr): Cidr? {
+            if (bits != next.bits || prefix != next.prefix || prefix == 0) return null
+            if (end + BigInteger.ONE != next.network) return null
+            if (network.testBit(bits - prefix)) return null
+            return Cidr(bits, network, prefix - 1)
+        }
+
+        override fun toString(): String {
+            val bytes = network.toByteArray().let { raw ->
+                val size = bits / 8
+                ByteArray(size).also { raw.copyInto(it, maxOf(0, size - raw.size), maxOf(0, raw.size - size)) }
+            }
+            val address = if (bits == 32) {
+                Inet4Address.getByAddress(bytes)
+            } else {
+                Inet6Address.getByAddress(null, bytes, -1)
+            }
+            return if (prefix == bits) address.hostAddress!! else "${address.hostAddress}/$prefix"
+        }
+    }
+
+}
@@ -0,0 +1,187 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2021 by nekohasekai <contact-sagernet@sekai.icu>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+
+package io.nekohasekai.sagernet.fmt
+
+import com.google.protobuf.CodedOutputStream
+import io.nekohasekai.sagernet.database.RuleEntity
+import io.nekohasekai.sagernet.ktx.Logs
+import io.nekohasekai.sagernet.ktx.app
+import io.nekohasekai.sagernet.ktx.listByLineOrComma
+import io.nekohasekai.sagernet.utils.Subnet
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.net.Inet4Address
+import java.security.MessageDigest
+
+/**
+ * Large domain and ip lists of a rule are compiled into geosite / geoip format files under
+ * the assets directory and referenced with `ext:` instead of being inlined into the config.
+ *
+ * Files are named after the rule id and a digest of the list, so they are written when the
+ * rule is edited and only rewritten by the config builder if missing (e.g. after a restore).
+ */
+object RuleSets {
+
+    const val MIN_ENTRIES = 1000
+    const val DIR = "rule_sets"
+    private const val TAG = "rule"
+
+    private const val DOMAIN_PLAIN = 0
+    private const val DOMAIN_REGEX = 1
+    private const val DOMAIN_ROOT = 2
+    private const val DOMAIN_FULL = 3
+
+    private val dir by lazy { File(app.externalAssets, DIR) }
+    private val reference = Regex("ext:$DIR/([^:\"]+):$TAG")
+
+    fun domains(rule: RuleEntity): List<String> {
+        val entries = rule.domains.listByLineOrComma()
+        if (entries.size < MIN_ENTRIES) return entries
+        val (compiled, inline) = entries.partition { domainType(it) != null }
+        val file = ensure(rule.id, "site", rule.domains) { writeGeoSite(compiled) }
+        return inline + "ext:$DIR/${file.name}:$TAG"
+    }
+
+    fun ips(rule: RuleEntity): List<String> {
+        val entries = rule.ip.listByLineOrComma()
+        if (entries.size < MIN_ENTRIES) return entries
+        val cidrs = ArrayList<Subnet>()
+        val inline = ArrayList<String>()
+        for (entry in entries) {
+            val subnet = Subnet.fromString(entry)
+            if (subnet == null || entry.contains(':') && subnet.address is Inet4Address) {
+                inline.add(entry)
+            } else {
+                cidrs.add(subnet)
+            }
+        }
+        val file = ensure(rule.id, "ip", rule.ip) { writeGeoIP(cidrs) }
+        return inline + "ext:$DIR/${file.name}:$TAG"
+    }
+
+    /**
+     * Called when a rule is saved, so the service does not have to compile the lists on start.
+     */
+    fun update(rule: RuleEntity) {
+        try {
+            domains(rule)
+            ips(rule)
+            prune(rule.id, fileName(rule.id, "site", rule.domains), fileName(rule.id, "ip", rule.ip))
+        } catch (e: Exception) {
+            Logs.w("Failed to compile rule sets of rule ${rule.id}", e)
+        }
+    }
+
+    /**
+     * Called with a config restored from [ConfigCache], recompile the rule sets it references
+     * if any of them was deleted since.
+     */
+    fun restore(config: String, rules: List<RuleEntity>) {
+        val missing = reference.findAll(config).any { !File(dir, it.groupValues[1]).isFile }
+        if (!missing) return
+        for (rule in rules) {
+            domains(rule)
+            ips(rule)
+        }
+    }
+
+    fun delete(ruleId: Long) {
+        prune(ruleId)
+    }
+
+    private fun prune(ruleId: Long, vararg keep: String) {
+        dir.listFiles()?.forEach {
+            if (it.name.startsWith("$ruleId-") && it.name !in keep) it.delete()
+        }
+    }
+
+    private fun fileName(ruleId: Long, kind: String, content: String): String {
+        val digest = MessageDigest.getInstance("SHA-256").digest(content.toByteArray())
+        return "$ruleId-$kind-" + digest.take(8).joinToString("") { "%02x".format(it) } + ".dat"
+    }
+
+    private fun ensure(ruleId: Long, kind: String, content: String, write: () -> ByteArray): File {
+        val file = File(dir, fileName(ruleId, kind, content))
+        if (file.isFile) return file
+        dir.mkdirs()
+        val tmp = File(dir, file.name + ".tmp")
+        tmp.writeBytes(write())
+        if (!tmp.renameTo(file)) {
+            tmp.delete()
+            if (!file.isFile) error("Failed to write ${file.name}")
+        }
+        Logs.d("Compiled rule set ${file.name}")
+        return file
+    }
+
+    private fun domainType(entry: String): Int? {
+        if (!entry.contains(':')) return DOMAIN_PLAIN
+        return when (entry.substringBefore(':')) {
+            "keyword" -> DOMAIN_PLAIN
+            "regexp" -> DOMAIN_REGEX
+            "domain" -> DOMAIN_ROOT
+            "full" -> DOMAIN_FULL
+            else -> null // geosite:, ext: and so on stay in the rule
+        }
+    }
+
+    private inline fun message(block: (CodedOutputStream) -> Unit): ByteArray {
+        val bytes = ByteArrayOutputStream()
+        val output = CodedOutputStream.newInstance(bytes)
+        block(output)
+        output.flush()
+        return bytes.toByteArray()
+    }
+
+    // GeoSiteList { repeated GeoSite entry = 1 }
+    // GeoSite { string country_code = 1; repeated Domain domain = 2 }
+    // Domain { Type type = 1; string value = 2 }
+    private fun writeGeoSite(domains: List<String>) = message { list ->
+        list.writeByteArray(1, message { site ->
+            site.writeString(1, TAG.uppercase())
+            val entries = domains.map {
+                domainType(it)!! to (if (it.contains(':')) it.substringAfter(':') else it)
+            }.distinct().sortedWith(compareBy({ it.first }, { it.second }))
+            for ((type, value) in entries) {
+                site.writeByteArray(2, message {
+                    if (type != DOMAIN_PLAIN) it.writeEnum(1, type)
+                    it.writeString(2, value)
+                })
+            }
+        })
+    }
+
+    // GeoIPList { repeated GeoIP entry = 1 }
+    // GeoIP { string country_code = 1; repeated CIDR cidr = 2 }
+    // CIDR { bytes ip = 1; uint32 prefix = 2 }
+    private fun writeGeoIP(cidrs: List<Subnet>) = message { list ->
+        list.writeByteArray(1, message { geoip ->
+            geoip.writeString(1, TAG.uppercase())
+            for (cidr in cidrs.sorted().distinct()) {
+                geoip.writeByteArray(2, message {
+                    it.writeByteArray(1, cidr.address.address)
+                    it.writeUInt32(2, cidr.prefixSize)
+                })
+            }
+        })
+    }
+
+}
@@ -0,0 +1,67 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2021 by nekohasekai <contact-sagernet@sekai.icu>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+
+package io.nekohasekai.sagernet.fmt
+
+import io.nekohasekai.sagernet.database.ProxyEntity
+
+/**
+ * Flat layout of the counters queried on every stats tick, resolved once per built config.
+ * Counter `i` belongs to [tags]`[i]`, [entities]`[i]` is the profile it is accounted to.
+ */
+class StatsLayout(
+    val tags: Array<String>,
+    val kinds: ByteArray,
+    val entities: Array<ProxyEntity?>,
+) {
+
+    companion object {
+        // outbounds of the current profile, counted as proxy traffic and to its total
+        const val KIND_CURRENT: Byte = 0
+
+        // outbounds used by routing rules, counted as proxy traffic
+        const val KIND_STATS: Byte = 1
+
+        // intermediate chain hops, only accounted to their profile
+        const val KIND_INTER: Byte = 2
+
+        fun of(
+            outboundTags: List<String>,
+            outboundTagsCurrent: List<String>,
+            outboundTagsAll: Map<String, ProxyEntity>,
+        ): StatsLayout {
+            val tags = ArrayList<String>()
+            val kinds = ArrayList<Byte>()
+            val entities = ArrayList<ProxyEntity?>()
+            fun add(tag: String, kind: Byte) {
+                tags.add(tag)
+                kinds.add(kind)
+                entities.add(outboundTagsAll[tag])
+            }
+            outboundTagsCurrent.forEach { add(it, KIND_CURRENT) }
+            outboundTags.filter { it !in outboundTagsCurrent }.forEach { add(it, KIND_STATS) }
+            outboundTagsAll.keys.filter { it !in outboundTags }.forEach { add(it, KIND_INTER) }
+            return StatsLayout(tags.toTypedArray(), kinds.toByteArray(), entities.toTypedArray())
+        }
+    }
+
+    val size get() = tags.size
+
+}
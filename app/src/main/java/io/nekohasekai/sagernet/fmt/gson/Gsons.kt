@@ -20,11 +20,70 @@
 package io.nekohasekai.sagernet.fmt.gson
 
 import com.google.gson.GsonBuilder
+import com.google.gson.JsonParser
+import io.nekohasekai.sagernet.fmt.v2ray.V2RayConfig
+import io.nekohasekai.sagernet.ktx.Logs
+import java.lang.reflect.Modifier
 
-val gson = GsonBuilder()
-    .setPrettyPrinting()
+internal fun newGsonBuilder(configAdapters: Boolean = true): GsonBuilder = GsonBuilder()
     .setLenient()
     .registerTypeAdapterFactory(JsonOrAdapterFactory())
     .registerTypeAdapterFactory(JsonLazyFactory())
+    .apply { if (configAdapters) registerTypeAdapterFactory(V2RayConfigAdapterFactory()) }
     .disableHtmlEscaping()
-    .create()
\ No newline at end of file
+
+val gson = newGsonBuilder().create()
+
+// for user-facing output only, configs passed to the core stay compact
+val prettyGson = gson.newBuilder()
+    .setPrettyPrinting()
+    .create()
+
+fun prettyJson(json: String): String {
+    return prettyGson.toJson(JsonParser.parseString(json))
+}
+
+private const val MAX_RETAINED_BUFFER = 1024 * 1024
+
+private val configBuffer = object : ThreadLocal<StringBuilder>() {
+    override fun initialValue() = StringBuilder(16 * 1024)
+}
+
+/**
+ * Serialize a core config with [gson] into a per-thread reused buffer,
+ * instead of growing a fresh StringWriter for every build.
+ */
+fun toConfigJson(src: Any): String {
+    val buffer = configBuffer.get()!!
+    buffer.setLength(0)
+    gson.toJson(src, buffer)
+    val json = buffer.toString()
+    if (buffer.capacity() > MAX_RETAINED_BUFFER) {
+        configBuffer.remove()
+    }
+    return json
+}
+
+/**
+ * Create the adapters of the whole V2RayConfig model ahead of the first build,
+ * so the first start in a fresh service process does not pay for creating them.
+ * Objects without a hand-written adapter in [V2RayConfigAdapterFactory] still use reflection.
+ */
+fun warmUpConfigAdapters() {
+    val start = System.nanoTime()
+    val pending = ArrayDeque<Class<*>>()
+    pending.add(V2RayConfig::class.java)
+    var count = 0
+    while (pending.isNotEmpty()) {
+        val clazz = pending.removeFirst()
+        pending.addAll(clazz.declaredClasses)
+        if (clazz.isInterface || Modifier.isAbstract(clazz.modifiers)) continue
+        try {
+            gson.getAdapter(clazz)
+            count++
+        } catch (e: Exception) {
+            Logs.w("Unable to create adapter for ${clazz.name}", e)
+        }
+    }
+    Logs.d("Created $count config adapters in ${(System.nanoTime() - start) / 1000000}ms")
+}
@@ -0,0 +1,386 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2021 by nekohasekai <contact-sagernet@sekai.icu>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+package io.nekohasekai.sagernet.fmt.gson;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+
+import io.nekohasekai.sagernet.fmt.v2ray.V2RayConfig;
+import io.nekohasekai.sagernet.fmt.v2ray.V2RayConfig.DnsObject;
+import io.nekohasekai.sagernet.fmt.v2ray.V2RayConfig.InboundObject;
+import io.nekohasekai.sagernet.fmt.v2ray.V2RayConfig.OutboundObject;
+import io.nekohasekai.sagernet.fmt.v2ray.V2RayConfig.RoutingObject;
+import io.nekohasekai.sagernet.fmt.v2ray.V2RayConfig.StreamSettingsObject;
+
+/**
+ * Reflection-free writers for the objects every config build serializes: the root, dns,
+ * routing rules, inbounds, outbounds and their stream settings. Reading is rare and still
+ * goes through the reflective adapters.
+ * <p>
+ * Fields are written in declaration order and must be kept in sync with {@link V2RayConfig},
+ * {@code V2RayConfigAdapterTest} fails when a field is not written.
+ */
+@SuppressWarnings({"unchecked", "rawtypes"})
+public class V2RayConfigAdapterFactory implements TypeAdapterFactory {
+
+    @Override
+    public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+        Class<? super T> raw = type.getRawType();
+        TypeAdapter adapter;
+        if (raw == V2RayConfig.class) {
+            adapter = new RootAdapter(gson, this, type);
+        } else if (raw == DnsObject.class) {
+            adapter = new DnsAdapter(gson, this, type);
+        } else if (raw == DnsObject.ServerObject.class) {
+            adapter = new DnsServerAdapter(gson, this, type);
+        } else if (raw == RoutingObject.class) {
+            adapter = new RoutingAdapter(gson, this, type);
+        } else if (raw == RoutingObject.RuleObject.class) {
+            adapter = new RuleAdapter(gson, this, type);
+        } else if (raw == InboundObject.class) {
+            adapter = new InboundAdapter(gson, this, type);
+        } else if (raw == OutboundObject.class) {
+            adapter = new OutboundAdapter(gson, this, type);
+        } else if (raw == StreamSettingsObject.class) {
+            adapter = new StreamSettingsAdapter(gson, this, type);
+        } else if (raw == StreamSettingsObject.SockoptObject.class) {
+            adapter = new SockoptAdapter(gson, this, type);
+        } else {
+            return null;
+        }
+        return (TypeAdapter<T>) adapter;
+    }
+
+    private static abstract class ConfigAdapter<T> extends TypeAdapter<T> {
+
+        private final Gson gson;
+        private final TypeAdapterFactory skipPast;
+        private final TypeToken<T> type;
+        private TypeAdapter<T> reflective;
+
+        ConfigAdapter(Gson gson, TypeAdapterFactory skipPast, TypeToken<T> type) {
+            this.gson = gson;
+            this.skipPast = skipPast;
+            this.type = type;
+        }
+
+        abstract void writeFields(JsonWriter out, T value) throws IOException;
+
+        @Override
+        public void write(JsonWriter out, T value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            writeFields(out, value);
+            out.endObject();
+        }
+
+        @Override
+        public T read(JsonReader in) throws IOException {
+            if (reflective == null) {
+                reflective = gson.getDelegateAdapter(skipPast, type);
+            }
+            return reflective.read(in);
+        }
+
+        static void write(JsonWriter out, String name, String value) throws IOException {
+            if (value != null) out.name(name).value(value);
+        }
+
+        static void write(JsonWriter out, String name, Number value) throws IOException {
+            if (value != null) out.name(name).value(value);
+        }
+
+        static void write(JsonWriter out, String name, Boolean value) throws IOException {
+            if (value != null) out.name(name).value(value);
+        }
+
+        static void writeStrings(JsonWriter out, String name, Collection<String> value) throws IOException {
+            if (value == null) return;
+            out.name(name).beginArray();
+            for (String item : value) out.value(item);
+            out.endArray();
+        }
+
+        static void writeNumbers(JsonWriter out, String name, Collection<? extends Number> value) throws IOException {
+            if (value == null) return;
+            out.name(name).beginArray();
+            for (Number item : value) out.value(item);
+            out.endArray();
+        }
+
+        static void writeStringMap(JsonWriter out, String name, Map<String, String> value) throws IOException {
+            if (value == null) return;
+            out.name(name).beginObject();
+            for (Map.Entry<String, String> entry : value.entrySet()) {
+                out.name(entry.getKey()).value(entry.getValue());
+            }
+            out.endObject();
+        }
+
+        void writeObject(JsonWriter out, String name, Object value, Class<?> type) throws IOException {
+            if (value == null) return;
+            out.name(name);
+            ((TypeAdapter) gson.getAdapter(type)).write(out, value);
+        }
+
+        void writeList(JsonWriter out, String name, Collection<?> value, Class<?> type) throws IOException {
+            if (value == null) return;
+            TypeAdapter adapter = gson.getAdapter(type);
+            out.name(name).beginArray();
+            for (Object item : value) adapter.write(out, item);
+            out.endArray();
+        }
+
+    }
+
+    private static class RootAdapter extends ConfigAdapter<V2RayConfig> {
+
+        RootAdapter(Gson gson, TypeAdapterFactory skipPast, TypeToken type) {
+            super(gson, skipPast, type);
+        }
+
+        @Override
+        void writeFields(JsonWriter out, V2RayConfig value) throws IOException {
+            writeObject(out, "log", value.log, V2RayConfig.LogObject.class);
+            writeObject(out, "api", value.api, V2RayConfig.ApiObject.class);
+            writeObject(out, "dns", value.dns, DnsObject.class);
+            writeObject(out, "routing", value.routing, RoutingObject.class);
+            writeObject(out, "policy", value.policy, V2RayConfig.PolicyObject.class);
+            writeList(out, "inbounds", value.inbounds, InboundObject.class);
+            writeList(out, "outbounds", value.outbounds, OutboundObject.class);
+            writeObject(out, "transport", value.transport, V2RayConfig.TransportObject.class);
+            writeObject(out, "stats", value.stats, Object.class);
+            writeList(out, "fakedns", value.fakedns, V2RayConfig.FakeDnsObject.class);
+            writeObject(out, "browserForwarder", value.browserForwarder, V2RayConfig.BrowserForwarderObject.class);
+            writeObject(out, "browserDialer", value.browserDialer, V2RayConfig.BrowserDialerObject.class);
+            writeObject(out, "reverse", value.reverse, V2RayConfig.ReverseObject.class);
+            writeObject(out, "observatory", value.observatory, V2RayConfig.ObservatoryObject.class);
+            writeObject(out, "multiObservatory", value.multiObservatory, V2RayConfig.MultiObservatoryObject.class);
+        }
+
+    }
+
+    private static class DnsAdapter extends ConfigAdapter<DnsObject> {
+
+        DnsAdapter(Gson gson, TypeAdapterFactory skipPast, TypeToken type) {
+            super(gson, skipPast, type);
+        }
+
+        @Override
+        void writeFields(JsonWriter out, DnsObject value) throws IOException {
+            writeStringMap(out, "hosts", value.hosts);
+            writeList(out, "servers", value.servers, DnsObject.StringOrServerObject.class);
+            writeList(out, "fakedns", value.fakedns, DnsObject.StringOrFakeDnsObject.class);
+            write(out, "clientIp", value.clientIp);
+            write(out, "disableCache", value.disableCache);
+            write(out, "tag", value.tag);
+            writeStrings(out, "domains", value.domains);
+            writeStrings(out, "expectIPs", value.expectIPs);
+            write(out, "queryStrategy", value.queryStrategy);
+            write(out, "cacheStrategy", value.cacheStrategy);
+            write(out, "fallbackStrategy", value.fallbackStrategy);
+            write(out, "domainMatcher", value.domainMatcher);
+            write(out, "disableFallback", value.disableFallback);
+            write(out, "disableFallbackIfMatch", value.disableFallbackIfMatch);
+        }
+
+    }
+
+    private static class DnsServerAdapter extends ConfigAdapter<DnsObject.ServerObject> {
+
+        DnsServerAdapter(Gson gson, TypeAdapterFactory skipPast, TypeToken type) {
+            super(gson, skipPast, type);
+        }
+
+        @Override
+        void writeFields(JsonWriter out, DnsObject.ServerObject value) throws IOException {
+            write(out, "address", value.address);
+            write(out, "port", value.port);
+            write(out, "clientIp", value.clientIp);
+            write(out, "skipFallback", value.skipFallback);
+            writeStrings(out, "domains", value.domains);
+            writeStrings(out, "expectIPs", value.expectIPs);
+            write(out, "tag", value.tag);
+            write(out, "queryStrategy", value.queryStrategy);
+            write(out, "cacheStrategy", value.cacheStrategy);
+            write(out, "fallbackStrategy", value.fallbackStrategy);
+            write(out, "domainMatcher", value.domainMatcher);
+            writeList(out, "fakedns", value.fakedns, DnsObject.ServerObject.StringOrFakeDnsObject.class);
+        }
+
+    }
+
+    private static class RoutingAdapter extends ConfigAdapter<RoutingObject> {
+
+        RoutingAdapter(Gson gson, TypeAdapterFactory skipPast, TypeToken type) {
+            super(gson, skipPast, type);
+        }
+
+        @Override
+        void writeFields(JsonWriter out, RoutingObject value) throws IOException {
+            write(out, "domainStrategy", value.domainStrategy);
+            write(out, "domainMatcher", value.domainMatcher);
+            writeList(out, "rules", value.rules, RoutingObject.RuleObject.class);
+            writeList(out, "balancers", value.balancers, RoutingObject.BalancerObject.class);
+        }
+
+    }
+
+    private static class RuleAdapter extends ConfigAdapter<RoutingObject.RuleObject> {
+
+        RuleAdapter(Gson gson, TypeAdapterFactory skipPast, TypeToken type) {
+            super(gson, skipPast, type);
+        }
+
+        @Override
+        void writeFields(JsonWriter out, RoutingObject.RuleObject value) throws IOException {
+            write(out, "type", value.type);
+            writeStrings(out, "domain", value.domain);
+            writeStrings(out, "ip", value.ip);
+            write(out, "port", value.port);
+            write(out, "sourcePort", value.sourcePort);
+            write(out, "network", value.network);
+            writeStrings(out, "source", value.source);
+            writeStrings(out, "user", value.user);
+            writeStrings(out, "inboundTag", value.inboundTag);
+            writeStrings(out, "protocol", value.protocol);
+            write(out, "attrs", value.attrs);
+            write(out, "outboundTag", value.outboundTag);
+            write(out, "balancerTag", value.balancerTag);
+            writeNumbers(out, "uidList", value.uidList);
+            writeStrings(out, "ssidList", value.ssidList);
+            write(out, "networkType", value.networkType);
+            write(out, "skipDomain", value.skipDomain);
+        }
+
+    }
+
+    private static class InboundAdapter extends ConfigAdapter<InboundObject> {
+
+        InboundAdapter(Gson gson, TypeAdapterFactory skipPast, TypeToken type) {
+            super(gson, skipPast, type);
+        }
+
+        @Override
+        void writeFields(JsonWriter out, InboundObject value) throws IOException {
+            write(out, "listen", value.listen);
+            write(out, "port", value.port);
+            write(out, "protocol", value.protocol);
+            writeObject(out, "settings", value.settings, V2RayConfig.LazyInboundConfigurationObject.class);
+            writeObject(out, "streamSettings", value.streamSettings, StreamSettingsObject.class);
+            write(out, "tag", value.tag);
+            writeObject(out, "sniffing", value.sniffing, InboundObject.SniffingObject.class);
+            writeObject(out, "allocate", value.allocate, InboundObject.AllocateObject.class);
+        }
+
+    }
+
+    private static class OutboundAdapter extends ConfigAdapter<OutboundObject> {
+
+        OutboundAdapter(Gson gson, TypeAdapterFactory skipPast, TypeToken type) {
+            super(gson, skipPast, type);
+        }
+
+        @Override
+        void writeFields(JsonWriter out, OutboundObject value) throws IOException {
+            write(out, "sendThrough", value.sendThrough);
+            write(out, "protocol", value.protocol);
+            writeObject(out, "settings", value.settings, V2RayConfig.LazyOutboundConfigurationObject.class);
+            write(out, "tag", value.tag);
+            writeObject(out, "streamSettings", value.streamSettings, StreamSettingsObject.class);
+            writeObject(out, "proxySettings", value.proxySettings, OutboundObject.ProxySettingsObject.class);
+            writeObject(out, "mux", value.mux, OutboundObject.MuxObject.class);
+            write(out, "domainStrategy", value.domainStrategy);
+            write(out, "dialDomainStrategy", value.dialDomainStrategy);
+        }
+
+    }
+
+    private static class StreamSettingsAdapter extends ConfigAdapter<StreamSettingsObject> {
+
+        StreamSettingsAdapter(Gson gson, TypeAdapterFactory skipPast, TypeToken type) {
+            super(gson, skipPast, type);
+        }
+
+        @Override
+        void writeFields(JsonWriter out, StreamSettingsObject value) throws IOException {
+            write(out, "network", value.network);
+            write(out, "security", value.security);
+            writeObject(out, "tlsSettings", value.tlsSettings, V2RayConfig.TLSObject.class);
+            writeObject(out, "utlsSettings", value.utlsSettings, V2RayConfig.UTLSObject.class);
+            writeObject(out, "realitySettings", value.realitySettings, V2RayConfig.RealityObject.class);
+            writeObject(out, "tcpSettings", value.tcpSettings, V2RayConfig.TcpObject.class);
+            writeObject(out, "kcpSettings", value.kcpSettings, V2RayConfig.KcpObject.class);
+            writeObject(out, "wsSettings", value.wsSettings, V2RayConfig.WebSocketObject.class);
+            writeObject(out, "httpSettings", value.httpSettings, V2RayConfig.HttpObject.class);
+            writeObject(out, "quicSettings", value.quicSettings, V2RayConfig.QuicObject.class);
+            writeObject(out, "dsSettings", value.dsSettings, V2RayConfig.DomainSocketObject.class);
+            writeObject(out, "grpcSettings", value.grpcSettings, V2RayConfig.GrpcObject.class);
+            writeObject(out, "gunSettings", value.gunSettings, V2RayConfig.GrpcObject.class);
+            writeObject(out, "meekSettings", value.meekSettings, V2RayConfig.MeekObject.class);
+            writeObject(out, "httpupgradeSettings", value.httpupgradeSettings, V2RayConfig.HTTPUpgradeObject.class);
+            writeObject(out, "hy2Settings", value.hy2Settings, V2RayConfig.Hysteria2Object.class);
+            writeObject(out, "splithttpSettings", value.splithttpSettings, V2RayConfig.SplitHTTPObject.class);
+            writeObject(out, "mekyaSettings", value.mekyaSettings, V2RayConfig.MekyaObject.class);
+            writeObject(out, "dtlsSettings", value.dtlsSettings, V2RayConfig.DTLSObject.class);
+            writeObject(out, "requestSettings", value.requestSettings, V2RayConfig.RequestObject.class);
+            writeObject(out, "sockopt", value.sockopt, StreamSettingsObject.SockoptObject.class);
+        }
+
+    }
+
+    private static class SockoptAdapter extends ConfigAdapter<StreamSettingsObject.SockoptObject> {
+
+        SockoptAdapter(Gson gson, TypeAdapterFactory skipPast, TypeToken type) {
+            super(gson, skipPast, type);
+        }
+
+        @Override
+        void writeFields(JsonWriter out, StreamSettingsObject.SockoptObject value) throws IOException {
+            write(out, "mark", value.mark);
+            write(out, "tcpFastOpen", value.tcpFastOpen);
+            write(out, "acceptProxyProtocol", value.acceptProxyProtocol);
+            write(out, "tproxy", value.tproxy);
+            write(out, "tcpKeepAliveInterval", value.tcpKeepAliveInterval);
+            write(out, "tcpKeepAliveIdle", value.tcpKeepAliveIdle);
+            write(out, "tcpFastOpenQueueLength", value.tcpFastOpenQueueLength);
+            write(out, "bindToDevice", value.bindToDevice);
+            write(out, "rxBufSize", value.rxBufSize);
+            write(out, "txBufSize", value.txBufSize);
+            write(out, "forceBufSize", value.forceBufSize);
+            write(out, "dialerProxy", value.dialerProxy);
+            writeObject(out, "fragment", value.fragment, StreamSettingsObject.SockoptObject.FragmentObject.class);
+            writeList(out, "noises", value.noises, StreamSettingsObject.SockoptObject.NoiseObject.class);
+        }
+
+    }
+
+}
@@ -38,8 +38,8 @@ import io.nekohasekai.sagernet.fmt.tuic.TuicBean
 import io.nekohasekai.sagernet.fmt.tuic5.Tuic5Bean
 import io.nekohasekai.sagernet.fmt.v2ray.StandardV2RayBean
 import io.nekohasekai.sagernet.ktx.*
+import io.nekohasekai.sagernet.utils.HostResolver
 import kotlinx.coroutines.*
-import libcore.Libcore
 import java.net.Inet4Address
 import java.net.InetAddress
 import java.util.*
@@ -91,19 +91,11 @@ abstract class GroupUpdater {
             "https://doh.pub/dns-query" // TODO: do not hardcode this
         }
 
-        val client = Libcore.newHttpClient().apply {
-            modernTLS()
-            keepAlive()
-            if (SagerNet.started && DataStore.startedProfile > 0) {
-                useSocks5(DataStore.socksPort)
-            }
-        }
+        val socksPort = if (SagerNet.started && DataStore.startedProfile > 0) DataStore.socksPort else 0
 
         Logs.d("Using doh url $dohHttpUrl")
 
         val ipv6Mode = DataStore.ipv6Mode
-        val lookupPool = newFixedThreadPoolContext(5, "DNS Lookup")
-        val lookupJobs = mutableListOf<Job>()
         val progress = Progress(profiles.size)
         if (groupId != null) {
             GroupUpdater.progress[groupId] = progress
@@ -111,42 +103,27 @@ abstract class GroupUpdater {
         }
         val ipv6First = ipv6Mode >= IPv6Mode.PREFER
 
-        for (profile in profiles) {
-            if (profile.serverAddress.isIpAddress()) continue
-
-            lookupJobs.add(GlobalScope.launch(lookupPool) {
-                try {
-                    val message = Libcore.encodeDomainNameSystemQuery(
-                        1, profile.serverAddress, ipv6Mode
-                    )
-                    val response = client.newRequest().apply {
-                        setMethod("POST")
-                        setURL(dohHttpUrl)
-                        setContent(message)
-                        setHeader("Accept", "application/dns-message")
-                        setHeader("Content-Type", "application/dns-message")
-                    }.execute()
-
-                    val results = Libcore.decodeContentDomainNameSystemResponse(response.content)
-                        .trimStart()
-                        .split(" ")
-                        .map { InetAddress.getByName(it) }
-
-                    if (results.isEmpty()) error("empty response")
-                    rewriteAddress(profile, results, ipv6First)
-                } catch (e: Exception) {
-                    Logs.d("Lookup ${profile.serverAddress} failed: ${e.readableMessage}",e)
-                }
-                if (groupId != null) {
-                    progress.progress++
-                    GroupManager.postReload(groupId)
+        // HostResolver bounds the queries and shares them between profiles of one server
+        coroutineScope {
+            for (profile in profiles) {
+                if (profile.serverAddress.isIpAddress()) continue
+
+                launch {
+                    try {
+                        val results = HostResolver.resolve(
+                            profile.serverAddress, dohHttpUrl, ipv6Mode, socksPort
+                        )
+                        rewriteAddress(profile, results, ipv6First)
+                    } catch (e: Exception) {
+                        Logs.d("Lookup ${profile.serverAddress} failed: ${e.readableMessage}", e)
+                    }
+                    if (groupId != null) {
+                        progress.progress++
+                        GroupManager.postReload(groupId)
+                    }
                 }
-            })
+            }
         }
-
-        client.close()
-        lookupJobs.joinAll()
-        lookupPool.close()
     }
 
     protected fun rewriteAddress(
@@ -20,8 +20,13 @@
 package io.nekohasekai.sagernet.ktx
 
 import cn.hutool.core.lang.Validator
+import android.os.SystemClock
 import io.nekohasekai.sagernet.BuildConfig
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.withContext
 import libcore.URL
+import java.io.IOException
 import java.net.InetSocketAddress
 import java.net.Socket
 import kotlin.random.Random
@@ -65,13 +70,26 @@ fun String.unwrapHost(): String {
     return this
 }
 
-fun mkPort(): Int {
-    val socket = Socket()
-    socket.reuseAddress = true
-    socket.bind(InetSocketAddress(0))
-    val port = socket.localPort
-    socket.close()
-    return port
+/**
+ * Wait until [host]:[port] accepts a connection, retrying with exponential backoff.
+ * Returns false if nothing is listening after [timeout] milliseconds.
+ */
+suspend fun awaitListening(host: String, port: Int, timeout: Long): Boolean {
+    val deadline = SystemClock.elapsedRealtime() + timeout
+    var backoff = 5L
+    while (true) {
+        try {
+            withContext(Dispatchers.IO) {
+                Socket().use { it.connect(InetSocketAddress(host, port), 100) }
+            }
+            return true
+        } catch (_: IOException) {
+        }
+        val remaining = deadline - SystemClock.elapsedRealtime()
+        if (remaining <= 0) return false
+        delay(minOf(backoff, remaining))
+        backoff = minOf(backoff * 2, 200L)
+    }
 }
 
 fun String.listByLineOrComma(): List<String> {
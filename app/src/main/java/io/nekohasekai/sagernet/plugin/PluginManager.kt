@@ -25,6 +25,7 @@ import android.annotation.SuppressLint
 import android.content.BroadcastReceiver
 import android.content.ContentResolver
 import android.content.Intent
+import android.content.pm.ApplicationInfo
 import android.content.pm.ComponentInfo
 import android.content.pm.PackageManager
 import android.content.pm.ProviderInfo
@@ -33,10 +34,14 @@ import android.net.Uri
 import android.os.Build
 import android.system.Os
 import android.widget.Toast
+import androidx.core.content.pm.PackageInfoCompat
 import androidx.core.os.bundleOf
+import com.google.gson.reflect.TypeToken
 import io.nekohasekai.sagernet.R
 import io.nekohasekai.sagernet.SagerNet
 import io.nekohasekai.sagernet.bg.BaseService
+import io.nekohasekai.sagernet.database.DataStore
+import io.nekohasekai.sagernet.fmt.gson.gson
 import io.nekohasekai.sagernet.ktx.Logs
 import io.nekohasekai.sagernet.ktx.listenForPackageChanges
 import io.nekohasekai.sagernet.plugin.PluginContract.METADATA_KEY_ID
@@ -77,11 +82,15 @@ object PluginManager {
     @Throws(Throwable::class)
     fun init(pluginId: String): InitResult? {
         if (pluginId.isEmpty()) return null
+        lookupResolved(pluginId)?.also { return it }
         var throwable: Throwable? = null
 
         try {
             val result = initNative(pluginId)
-            if (result != null) return result
+            if (result != null) {
+                storeResolved(pluginId, result.first, result.second)
+                return result.first
+            }
         } catch (t: Throwable) {
             if (throwable == null) throwable = t else Logs.w(t)
         }
@@ -89,7 +98,97 @@ object PluginManager {
         throw throwable ?: PluginNotFoundException(pluginId)
     }
 
-    private fun initNative(pluginId: String): InitResult? {
+    /**
+     * A resolved executable, keyed on the package that provided it. The apk path and its
+     * mtime change on every install, so a cold start validates entries with a stat instead
+     * of asking PackageManager.
+     */
+    private class ResolvedEntry(
+        val path: String,
+        val packageName: String,
+        val versionCode: Long,
+        val lastUpdateTime: Long,
+        val sourceDir: String,
+        val sourceModified: Long,
+    )
+
+    private val resolved by lazy {
+        SagerNet.application.listenForPackageChanges(false) { intent ->
+            packageChanged(intent.data?.schemeSpecificPart)
+        }
+        val entries = try {
+            gson.fromJson<HashMap<String, ResolvedEntry>>(DataStore.pluginCache,
+                object : TypeToken<HashMap<String, ResolvedEntry>>() {}.type)
+        } catch (e: Exception) {
+            Logs.w(e)
+            null
+        }
+        entries ?: HashMap()
+    }
+
+    // entries to resolve again, including the provider priority and conflict checks
+    private val stale = HashSet<String>()
+
+    private fun packageChanged(packageName: String?) {
+        if (packageName.isNullOrEmpty()) {
+            synchronized(resolved) { stale.addAll(resolved.keys) }
+            return
+        }
+        val info = try {
+            SagerNet.application.packageManager.getPackageInfo(packageName, 0)
+        } catch (_: PackageManager.NameNotFoundException) {
+            null
+        }
+        val providesPlugins = info != null && SagerNet.application.packageManager.queryIntentContentProviders(
+            Intent(PluginContract.ACTION_NATIVE_PLUGIN).setPackage(packageName), 0
+        ).isNotEmpty()
+        synchronized(resolved) {
+            for ((pluginId, entry) in resolved) {
+                val unchanged = info != null && entry.packageName == packageName &&
+                        PackageInfoCompat.getLongVersionCode(info) == entry.versionCode &&
+                        info.lastUpdateTime == entry.lastUpdateTime
+                // a new plugin package may have a higher priority or conflict with the owner
+                if ((entry.packageName == packageName || providesPlugins) && !unchanged) {
+                    stale.add(pluginId)
+                }
+            }
+        }
+    }
+
+    private fun lookupResolved(pluginId: String): InitResult? = synchronized(resolved) {
+        val entry = resolved[pluginId] ?: return null
+        val valid = pluginId !in stale && File(entry.path).canExecute() &&
+                File(entry.sourceDir).lastModified() == entry.sourceModified
+        if (!valid) {
+            resolved.remove(pluginId)
+            stale.remove(pluginId)
+            DataStore.pluginCache = gson.toJson(resolved)
+            return null
+        }
+        InitResult(entry.path)
+    }
+
+    private fun storeResolved(pluginId: String, result: InitResult, owner: ApplicationInfo) {
+        val entry = try {
+            val info = SagerNet.application.packageManager.getPackageInfo(owner.packageName, 0)
+            ResolvedEntry(result.path,
+                owner.packageName,
+                PackageInfoCompat.getLongVersionCode(info),
+                info.lastUpdateTime,
+                owner.sourceDir,
+                File(owner.sourceDir).lastModified())
+        } catch (e: PackageManager.NameNotFoundException) {
+            Logs.w(e)
+            return
+        }
+        synchronized(resolved) {
+            resolved[pluginId] = entry
+            stale.remove(pluginId)
+            DataStore.pluginCache = gson.toJson(resolved)
+        }
+    }
+
+    private fun initNative(pluginId: String): Pair<InitResult, ApplicationInfo>? {
         var flags = PackageManager.GET_META_DATA
         if (Build.VERSION.SDK_INT >= 24) {
             flags =
@@ -100,7 +199,9 @@ object PluginManager {
             .filter { it.providerInfo.exported }
         if (providers.isEmpty()) {
             try {
-                initNativeInternal(pluginId)?.also { return InitResult(it) }
+                initNativeInternal(pluginId)?.also {
+                    return InitResult(it) to SagerNet.application.applicationInfo
+                }
             } catch (_: Throwable) {
             }
         }
@@ -141,7 +242,7 @@ object PluginManager {
         val provider = providers.single().providerInfo
         var failure: Throwable? = null
         try {
-            initNativeFaster(provider)?.also { return InitResult(it) }
+            initNativeFaster(provider)?.also { return InitResult(it) to provider.applicationInfo }
         } catch (t: Throwable) {
             Logs.w("Initializing native plugin faster mode failed")
             failure = t
@@ -154,7 +255,7 @@ object PluginManager {
         try {
             return initNativeFast(SagerNet.application.contentResolver,
                 pluginId,
-                uri)?.let { InitResult(it) }
+                uri)?.let { InitResult(it) to provider.applicationInfo }
         } catch (t: Throwable) {
             Logs.w("Initializing native plugin fast mode failed")
             failure?.also { t.addSuppressed(it) }
@@ -164,7 +265,7 @@ object PluginManager {
         try {
             return initNativeSlow(SagerNet.application.contentResolver,
                 pluginId,
-                uri)?.let { InitResult(it) }
+                uri)?.let { InitResult(it) to provider.applicationInfo }
         } catch (t: Throwable) {
             failure?.also { t.addSuppressed(it) }
             throw t
@@ -39,6 +39,10 @@ import io.nekohasekai.sagernet.utils.PackageCache
 
 class ActiveFragment : Fragment(R.layout.layout_traffic_list) {
 
+    companion object {
+        const val ACTIVE_LIMIT = 64
+    }
+
     lateinit var binding: LayoutTrafficListBinding
     lateinit var adapter: ActiveAdapter
 
@@ -48,11 +52,12 @@ class ActiveFragment : Fragment(R.layout.layout_traffic_list) {
         binding.trafficList.layoutManager = FixedLinearLayoutManager(binding.trafficList)
         binding.trafficList.adapter = adapter
         (parentFragment as TrafficFragment).listeners.add(::emitStats)
-        emitStats(emptyList())
+        emitStats()
     }
 
-    fun emitStats(statsList: List<AppStats>) {
-        if (statsList.isEmpty()) {
+    fun emitStats() {
+        val list = (parentFragment as? TrafficFragment)?.topStats ?: emptyList()
+        if (list.isEmpty()) {
             runOnMainDispatcher {
                 binding.holder.isVisible = true
                 binding.trafficList.isVisible = false
@@ -74,25 +79,6 @@ class ActiveFragment : Fragment(R.layout.layout_traffic_list) {
                 binding.holder.isVisible = false
                 binding.trafficList.isVisible = true
             }
-
-            val now = System.currentTimeMillis() / 1000
-            val list = statsList.filter { it.deactivateAt == 0 || now - it.deactivateAt < 5 }
-                .toSortedSet { a, b ->
-                    val dataA = a.uplink + a.downlink
-                    val dataB = b.uplink + b.downlink
-                    if (dataA != dataB) {
-                        dataB.compareTo(dataA)
-                    } else {
-                        val connA = a.tcpConnections + a.udpConnections
-                        val connB = b.tcpConnections + b.udpConnections
-                        if (connA != connB) {
-                            connB.compareTo(connA)
-                        } else {
-                            b.packageName.compareTo(a.packageName)
-                        }
-                    }
-                }
-                .toList()
             binding.trafficList.post {
                 adapter.data = list
                 adapter.notifyDataSetChanged()
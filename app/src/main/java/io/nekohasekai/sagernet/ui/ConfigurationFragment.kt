@@ -56,7 +56,11 @@ import cn.hutool.core.lang.Validator.isUrl
 import io.nekohasekai.sagernet.*
 import io.nekohasekai.sagernet.aidl.TrafficStats
 import io.nekohasekai.sagernet.bg.BaseService
+import io.nekohasekai.sagernet.bg.test.TcpPinger
+import io.nekohasekai.sagernet.bg.test.TestScheduler
+import io.nekohasekai.sagernet.bg.test.V2RayBatchTestInstance
 import io.nekohasekai.sagernet.bg.test.V2RayTestInstance
+import io.nekohasekai.sagernet.bg.test.V2RayThroughputTestInstance
 import io.nekohasekai.sagernet.database.*
 import io.nekohasekai.sagernet.databinding.LayoutProfileBinding
 import io.nekohasekai.sagernet.databinding.LayoutProfileListBinding
@@ -72,20 +76,18 @@ import io.nekohasekai.sagernet.group.RawUpdater
 import io.nekohasekai.sagernet.ktx.*
 import io.nekohasekai.sagernet.plugin.PluginManager
 import io.nekohasekai.sagernet.ui.profile.*
+import io.nekohasekai.sagernet.utils.HostResolver
 import io.nekohasekai.sagernet.widget.QRCodeDialog
 import io.nekohasekai.sagernet.widget.UndoSnackbarManager
 import kotlinx.coroutines.*
+import kotlinx.coroutines.channels.Channel
 import kotlinx.coroutines.sync.Mutex
 import kotlinx.coroutines.sync.withLock
 import libcore.Libcore
-import java.net.InetAddress
 import java.net.InetSocketAddress
-import java.net.Socket
 import java.net.UnknownHostException
 import java.util.*
-import java.util.concurrent.ConcurrentLinkedQueue
 import java.util.zip.ZipInputStream
-import kotlin.concurrent.timerTask
 
 class ConfigurationFragment @JvmOverloads constructor(
     val select: Boolean = false, val selectedItem: ProxyEntity? = null, val titleRes: Int = 0
@@ -289,9 +291,7 @@ class ConfigurationFragment @JvmOverloads constructor(
         val targetId = DataStore.selectedGroupForImport()
         val targetIndex = adapter.groupList.indexOfFirst { it.id == targetId }
 
-        for (proxy in proxies) {
-            ProfileManager.createProfile(targetId, proxy)
-        }
+        ProfileManager.createProfiles(targetId, proxies)
         onMainDispatcher {
             if (adapter.groupList.isEmpty() || selectedGroup.id != targetId) {
                 if (targetIndex != -1) {
@@ -459,10 +459,15 @@ class ConfigurationFragment @JvmOverloads constructor(
                     val profiles = SagerDatabase.proxyDao.getByGroup(DataStore.currentGroupId())
                     val toClear = mutableListOf<ProxyEntity>()
                     if (profiles.isNotEmpty()) for (profile in profiles) {
-                        if (profile.status != 0) {
+                        if (profile.status != 0 || profile.speedStatus != 0) {
                             profile.status = 0
                             profile.ping = 0
                             profile.error = null
+                            profile.speedStatus = 0
+                            profile.speed = 0
+                            profile.speedTtfb = 0
+                            profile.speedDeviation = 0
+                            profile.speedError = null
                             toClear.add(profile)
                         }
                     }
@@ -569,6 +574,9 @@ class ConfigurationFragment @JvmOverloads constructor(
             R.id.action_connection_url_test -> {
                 urlTest()
             }
+            R.id.action_connection_speed_test -> {
+                speedTest()
+            }
             R.id.action_filter_groups -> {
                 runOnDefaultDispatcher filter@{
                     val group = SagerDatabase.groupDao.getById(DataStore.currentGroupId())!!
@@ -714,7 +722,7 @@ class ConfigurationFragment @JvmOverloads constructor(
         return true
     }
 
-    inner class TestDialog {
+    inner class TestDialog(val showSpeed: Boolean = false) {
         val binding = LayoutProgressListBinding.inflate(layoutInflater)
         val builder = MaterialAlertDialogBuilder(requireContext()).setView(binding.root)
             .setNegativeButton(android.R.string.cancel) { _, _ ->
@@ -725,48 +733,88 @@ class ConfigurationFragment @JvmOverloads constructor(
         lateinit var cancel: () -> Unit
         val results = ArrayList<ProxyEntity>()
         val adapter = TestAdapter()
-        val scrollTimer = Timer("insert timer")
-        var currentTask: TimerTask? = null
+
+        // workers only queue events, the list is changed in batches on the main thread
+        private val events = Channel<Pair<ProxyEntity, Boolean>>(Channel.UNLIMITED)
+        private val tested = ArrayList<ProxyEntity>()
+        private val indexes = HashMap<Long, Int>()
+        private val counted = HashSet<Long>()
+        private val startTime = SystemClock.elapsedRealtime()
+        private var done = 0
+        private var available = 0
+        private var failed = 0
 
         fun insert(profile: ProxyEntity) {
-            binding.listView.post {
-                results.add(profile)
-                val index = results.size - 1
-                adapter.notifyItemInserted(index)
-                try {
-                    scrollTimer.schedule(timerTask {
-                        binding.listView.post {
-                            if (currentTask == this) binding.listView.smoothScrollToPosition(index)
-                        }
-                    }.also {
-                        currentTask?.cancel()
-                        currentTask = it
-                    }, 500L)
-                } catch (ignored: Exception) {
-                }
-            }
+            synchronized(tested) { tested.add(profile) }
+            events.trySend(profile to true)
         }
 
         fun update(profile: ProxyEntity) {
-            binding.listView.post {
-                val index = results.indexOf(profile)
-                adapter.notifyItemChanged(index)
-            }
+            events.trySend(profile to false)
         }
 
+        fun snapshot(): List<ProxyEntity> = synchronized(tested) { tested.toList() }
+
         fun close() {
-            try {
-                scrollTimer.schedule(timerTask {
-                    scrollTimer.cancel()
-                }, 0)
-            } catch (ignored: Exception) {
+            events.close()
+        }
+
+        private fun collect() = runOnMainDispatcher {
+            val inserted = ArrayList<ProxyEntity>()
+            val changed = LinkedHashMap<Long, ProxyEntity>()
+            while (true) {
+                var event = events.receiveCatching().getOrNull() ?: break
+                delay(100L)
+                while (true) {
+                    val (profile, isInsert) = event
+                    if (isInsert) inserted.add(profile) else changed[profile.id] = profile
+                    event = events.tryReceive().getOrNull() ?: break
+                }
+                apply(inserted, changed.values)
+                inserted.clear()
+                changed.clear()
+            }
+        }
+
+        private fun statusOf(profile: ProxyEntity) = if (showSpeed) profile.speedStatus else profile.status
+
+        private fun errorOf(profile: ProxyEntity) = if (showSpeed) profile.speedError else profile.error
+
+        private fun apply(inserted: List<ProxyEntity>, changed: Collection<ProxyEntity>) {
+            for (profile in inserted + changed) {
+                val status = statusOf(profile)
+                if (status == 0 || !counted.add(profile.id)) continue
+                done++
+                if (status == 1) available++ else failed++
             }
+            if (inserted.isNotEmpty()) {
+                val start = results.size
+                for (profile in inserted) {
+                    indexes[profile.id] = results.size
+                    results.add(profile)
+                }
+                adapter.notifyItemRangeInserted(start, inserted.size)
+            }
+            for (profile in changed) {
+                val index = indexes[profile.id] ?: continue
+                if (index < results.size - inserted.size) adapter.notifyItemChanged(index)
+            }
+            if (inserted.isNotEmpty()) binding.listView.smoothScrollToPosition(results.lastIndex)
+            val seconds = (SystemClock.elapsedRealtime() - startTime) / 1000.0
+            binding.summary.text = getString(
+                R.string.connection_test_summary,
+                done,
+                available,
+                failed,
+                if (seconds > 0) done / seconds else 0.0
+            )
         }
 
         init {
             binding.listView.layoutManager = FixedLinearLayoutManager(binding.listView)
             binding.listView.itemAnimator = DefaultItemAnimator()
             binding.listView.adapter = adapter
+            collect()
         }
 
         inner class TestAdapter : RecyclerView.Adapter<TestResultHolder>() {
@@ -793,9 +841,10 @@ class ConfigurationFragment @JvmOverloads constructor(
                 binding.profileName.text = profile.displayName()
                 binding.profileType.text = profile.displayType()
 
-                when (profile.status) {
+                val status = statusOf(profile)
+                when (status) {
                     -1 -> {
-                        binding.profileStatus.text = profile.error
+                        binding.profileStatus.text = errorOf(profile)
                         binding.profileStatus.setTextColor(requireContext().getColorAttr(android.R.attr.textColorSecondary))
                     }
                     0 -> {
@@ -803,11 +852,15 @@ class ConfigurationFragment @JvmOverloads constructor(
                         binding.profileStatus.setTextColor(requireContext().getColorAttr(android.R.attr.textColorSecondary))
                     }
                     1 -> {
-                        binding.profileStatus.text = getString(R.string.available, profile.ping)
+                        binding.profileStatus.text = if (showSpeed) {
+                            speedText(profile)
+                        } else {
+                            getString(R.string.available, profile.ping)
+                        }
                         binding.profileStatus.setTextColor(requireContext().getColour(R.color.material_green_500))
                     }
                     2 -> {
-                        binding.profileStatus.text = profile.error
+                        binding.profileStatus.text = errorOf(profile)
                         binding.profileStatus.setTextColor(requireContext().getColour(R.color.material_red_500))
                     }
                     3 -> {
@@ -816,9 +869,9 @@ class ConfigurationFragment @JvmOverloads constructor(
                     }
                 }
 
-                if (profile.status == 3) {
+                if (status == 3) {
                     binding.content.setOnClickListener {
-                        alert(profile.error ?: "<?>").show()
+                        alert(errorOf(profile) ?: "<?>").show()
                     }
                 } else {
                     binding.content.setOnClickListener {}
@@ -828,6 +881,32 @@ class ConfigurationFragment @JvmOverloads constructor(
 
     }
 
+    /**
+     * Profiles of [group] to test, limited to the selected groups, owners and tags of an OOCv1 subscription.
+     */
+    private fun testProfiles(group: ProxyGroup): List<ProxyEntity> {
+        var profiles = SagerDatabase.proxyDao.getByGroup(group.id)
+        val subscription = group.subscription?.takeIf { it.type == SubscriptionType.OOCv1 }
+            ?: return profiles
+        if (subscription.selectedGroups.isNotEmpty()) {
+            profiles = profiles.filter { it.requireBean().group in subscription.selectedGroups }
+        }
+        if (subscription.selectedOwners.isNotEmpty()) {
+            profiles = profiles.filter { it.requireBean().owner in subscription.selectedOwners }
+        }
+        if (subscription.selectedTags.isNotEmpty()) {
+            profiles = profiles.filter { it.requireBean().tags.containsAll(subscription.selectedTags) }
+        }
+        return profiles
+    }
+
+    fun speedText(profile: ProxyEntity) = getString(
+        R.string.available_speed,
+        profile.speed * 8 / 1000000.0,
+        profile.speedDeviation * 8 / 1000000.0,
+        profile.speedTtfb
+    )
+
     suspend fun stopService() {
         if (SagerNet.started) SagerNet.stopService()
         while (SagerNet.started) {
@@ -838,143 +917,120 @@ class ConfigurationFragment @JvmOverloads constructor(
     @Suppress("EXPERIMENTAL_API_USAGE")
     fun pingTest(icmpPing: Boolean) {
         val test = TestDialog()
-        val testJobs = mutableListOf<Job>()
         val dialog = test.builder.show()
         val mainJob = runOnDefaultDispatcher {
             val group = DataStore.currentGroup()
-            var profilesUnfiltered = SagerDatabase.proxyDao.getByGroup(group.id)
-            if (group.subscription?.type == SubscriptionType.OOCv1) {
-                val subscription = group.subscription!!
-                if (subscription.selectedGroups.isNotEmpty()) {
-                    profilesUnfiltered = profilesUnfiltered.filter { it.requireBean().group in subscription.selectedGroups }
-                }
-                if (subscription.selectedOwners.isNotEmpty()) {
-                    profilesUnfiltered = profilesUnfiltered.filter { it.requireBean().owner in subscription.selectedOwners }
-                }
-                if (subscription.selectedTags.isNotEmpty()) {
-                    profilesUnfiltered = profilesUnfiltered.filter { profile ->
-                        profile.requireBean().tags.containsAll(
-                            subscription.selectedTags
-                        )
-                    }
-                }
-            }
+            val profilesUnfiltered = testProfiles(group)
             stopService()
-            val profiles = ConcurrentLinkedQueue(profilesUnfiltered)
-            val testPool = newFixedThreadPoolContext(5, "Connection test pool")
-            repeat(6) {
-                testJobs.add(launch(testPool) {
-                    while (isActive) {
-                        val profile = profiles.poll() ?: break
-
-                        if (icmpPing) {
-                            if (!profile.requireBean().canICMPing()) {
-                                profile.status = -1
-                                profile.error = app.getString(R.string.connection_test_icmp_ping_unavailable)
-                                test.insert(profile)
-                                continue
-                            }
-                        } else {
-                            if (!profile.requireBean().canTCPing()) {
-                                profile.status = -1
-                                profile.error = app.getString(R.string.connection_test_tcp_ping_unavailable)
-                                test.insert(profile)
-                                continue
-                            }
+            // tcp pings only hold a selector registration while waiting
+            val pinger = if (icmpPing) null else TcpPinger { protectFromVpn(it) }
+            val scheduler = TestScheduler<ProxyEntity>(
+                { it.requireBean().serverAddress }, maxConcurrency = if (icmpPing) 64 else 256
+            )
+            try {
+                scheduler.run(profilesUnfiltered) { profile ->
+                    if (icmpPing) {
+                        if (!profile.requireBean().canICMPing()) {
+                            profile.status = -1
+                            profile.error = app.getString(R.string.connection_test_icmp_ping_unavailable)
+                            test.insert(profile)
+                            return@run TestScheduler.FAILED
+                        }
+                    } else {
+                        if (!profile.requireBean().canTCPing()) {
+                            profile.status = -1
+                            profile.error = app.getString(R.string.connection_test_tcp_ping_unavailable)
+                            test.insert(profile)
+                            return@run TestScheduler.FAILED
                         }
+                    }
 
-                        profile.status = 0
-                        test.insert(profile)
-                        var address = profile.requireBean().serverAddress
-                        if (!address.isIpAddress()) {
-                            try {
-                                InetAddress.getAllByName(address).apply {
-                                    if (isNotEmpty()) {
-                                        address = this[0].hostAddress
-                                    }
+                    profile.status = 0
+                    test.insert(profile)
+                    var address = profile.requireBean().serverAddress
+                    if (!address.isIpAddress()) {
+                        try {
+                            HostResolver.resolve(address).apply {
+                                if (isNotEmpty()) {
+                                    address = this[0].hostAddress
                                 }
-                            } catch (ignored: UnknownHostException) {
                             }
+                        } catch (ignored: UnknownHostException) {
                         }
-                        if (!isActive) break
-                        if (!address.isIpAddress()) {
-                            profile.status = 2
-                            profile.error = app.getString(R.string.connection_test_domain_not_found)
+                    }
+                    if (!isActive) return@run TestScheduler.FAILED
+                    if (!address.isIpAddress()) {
+                        profile.status = 2
+                        profile.error = app.getString(R.string.connection_test_domain_not_found)
+                        test.update(profile)
+                        return@run TestScheduler.FAILED
+                    }
+                    try {
+                        if (icmpPing) {
+                            val result = Libcore.icmpPing(
+                                address, 5000
+                            )
+                            if (!isActive) return@run TestScheduler.FAILED
+                            if (result != -1) {
+                                profile.status = 1
+                                profile.ping = result
+                            } else {
+                                profile.status = 2
+                                profile.error = getString(R.string.connection_test_unreachable)
+                            }
+                            test.update(profile)
+                            if (result != -1) result.toLong() else TestScheduler.TIMEOUT
+                        } else {
+                            val result = pinger!!.ping(
+                                InetSocketAddress(
+                                    address, profile.requireBean().serverPort // hysteria(2) can not tcping, no need to handle serverPorts here
+                                ), 5000
+                            )
+                            if (!isActive) return@run TestScheduler.FAILED
+                            profile.status = 1
+                            profile.ping = result
                             test.update(profile)
-                            continue
+                            result.toLong()
                         }
-                        try {
-                            if (icmpPing) {
-                                val result = Libcore.icmpPing(
-                                    address, 5000
-                                )
-                                if (!isActive) break
-                                if (result != -1) {
-                                    profile.status = 1
-                                    profile.ping = result
-                                } else {
-                                    profile.status = 2
-                                    profile.error = getString(R.string.connection_test_unreachable)
+                    } catch (e: Exception) {
+                        if (!isActive) return@run TestScheduler.FAILED
+                        val message = e.readableMessage
+                        var timeout = false
+
+                        if (icmpPing) {
+                            profile.status = 2
+                            profile.error = getString(R.string.connection_test_unreachable)
+                        } else {
+                            profile.status = 2
+                            when {
+                                !message.contains("failed:") -> {
+                                    profile.error = getString(R.string.connection_test_timeout)
+                                    timeout = true
                                 }
-                                test.update(profile)
-                            } else {
-                                val socket = Socket()
-                                try {
-                                    socket.soTimeout = 5000
-                                    socket.bind(InetSocketAddress(0))
-                                    protectFromVpn(socket.fileDescriptor.int)
-                                    val start = SystemClock.elapsedRealtime()
-                                    socket.connect(
-                                        InetSocketAddress(
-                                            address, profile.requireBean().serverPort // hysteria(2) can not tcping, no need to handle serverPorts here
-                                        ), 5000
-                                    )
-                                    if (!isActive) break
-                                    profile.status = 1
-                                    profile.ping = (SystemClock.elapsedRealtime() - start).toInt()
-                                    test.update(profile)
-                                } finally {
-                                    runCatching {
-                                        socket.close()
+                                else -> when {
+                                    message.contains("ECONNREFUSED") -> {
+                                        profile.error = getString(R.string.connection_test_refused)
                                     }
-                                }
-                            }
-                        } catch (e: Exception) {
-                            if (!isActive) break
-                            val message = e.readableMessage
-
-                            if (icmpPing) {
-                                profile.status = 2
-                                profile.error = getString(R.string.connection_test_unreachable)
-                            } else {
-                                profile.status = 2
-                                when {
-                                    !message.contains("failed:") -> profile.error = getString(R.string.connection_test_timeout)
-                                    else -> when {
-                                        message.contains("ECONNREFUSED") -> {
-                                            profile.error = getString(R.string.connection_test_refused)
-                                        }
-                                        message.contains("ENETUNREACH") -> {
-                                            profile.error = getString(R.string.connection_test_unreachable)
-                                        }
-                                        else -> {
-                                            profile.status = 3
-                                            profile.error = message
-                                        }
+                                    message.contains("ENETUNREACH") -> {
+                                        profile.error = getString(R.string.connection_test_unreachable)
+                                    }
+                                    else -> {
+                                        profile.status = 3
+                                        profile.error = message
                                     }
                                 }
                             }
-                            test.update(profile)
                         }
+                        test.update(profile)
+                        if (timeout) TestScheduler.TIMEOUT else TestScheduler.FAILED
                     }
-                })
+                }
+            } finally {
+                pinger?.close()
             }
-
-            testJobs.joinAll()
-            testPool.close()
             test.close()
 
-            ProfileManager.updateProfile(test.results.filter { it.status != 0 })
+            ProfileManager.updateProfile(test.snapshot().filter { it.status != 0 })
 
             onMainDispatcher {
                 test.binding.progressCircular.isGone = true
@@ -983,9 +1039,8 @@ class ConfigurationFragment @JvmOverloads constructor(
         }
         test.cancel = {
             mainJob.cancel()
-            testJobs.forEach { it.cancel() }
             runOnDefaultDispatcher {
-                ProfileManager.updateProfile(test.results.filter { it.status != 0 })
+                ProfileManager.updateProfile(test.snapshot().filter { it.status != 0 })
             }
         }
     }
@@ -994,62 +1049,121 @@ class ConfigurationFragment @JvmOverloads constructor(
     fun urlTest() {
         val test = TestDialog()
         val dialog = test.builder.show()
-        val testJobs = mutableListOf<Job>()
 
         val mainJob = runOnDefaultDispatcher {
             val group = DataStore.currentGroup()
-            var profilesUnfiltered = SagerDatabase.proxyDao.getByGroup(group.id)
-            if (group.subscription?.type == SubscriptionType.OOCv1) {
-                val subscription = group.subscription!!
-                if (subscription.selectedGroups.isNotEmpty()) {
-                    profilesUnfiltered = profilesUnfiltered.filter { it.requireBean().group in subscription.selectedGroups }
-                }
-                if (subscription.selectedOwners.isNotEmpty()) {
-                    profilesUnfiltered = profilesUnfiltered.filter { it.requireBean().owner in subscription.selectedOwners }
+            val profilesUnfiltered = testProfiles(group)
+            stopService()
+
+            val link = DataStore.connectionTestURL
+            val timeout = 5000
+
+            // one core for the whole group, falls back to an instance per profile if it can not be built
+            var batch: V2RayBatchTestInstance? = null
+            if (profilesUnfiltered.size > 1) {
+                val instance = V2RayBatchTestInstance(profilesUnfiltered, link, timeout)
+                try {
+                    instance.start()
+                    batch = instance
+                } catch (e: Exception) {
+                    Logs.w("Batch test unavailable, testing profiles one by one", e)
+                    runCatching { instance.close() }
                 }
-                if (subscription.selectedTags.isNotEmpty()) {
-                    profilesUnfiltered = profilesUnfiltered.filter { profile ->
-                        profile.requireBean().tags.containsAll(
-                            subscription.selectedTags
-                        )
+            }
+
+            // every profile started separately costs a core instance
+            val scheduler = TestScheduler<ProxyEntity>(
+                { it.requireBean().serverAddress }, maxConcurrency = if (batch != null) 64 else 8
+            )
+            try {
+                scheduler.run(profilesUnfiltered) { profile ->
+                    profile.status = 0
+                    test.insert(profile)
+
+                    var sample = TestScheduler.FAILED
+                    try {
+                        val result = batch?.doTest(profile) ?: V2RayTestInstance(
+                            profile, link, timeout
+                        ).use {
+                            it.doTest()
+                        }
+                        profile.status = 1
+                        profile.ping = result
+                        sample = result.toLong()
+                    } catch (e: PluginManager.PluginNotFoundException) {
+                        profile.status = -1
+                        profile.error = e.readableMessage
+                    } catch (e: Exception) {
+                        profile.status = 3
+                        profile.error = e.readableMessage
+                        val message = e.readableMessage.lowercase()
+                        if (message.contains("timeout") || message.contains("deadline")) {
+                            sample = TestScheduler.TIMEOUT
+                        }
                     }
+
+                    test.update(profile)
+                    ProfileManager.updateProfile(profile)
+                    sample
                 }
+            } finally {
+                batch?.let { runCatching { it.close() } }
+            }
+            test.close()
+            onMainDispatcher {
+                test.binding.progressCircular.isGone = true
+                dialog.getButton(DialogInterface.BUTTON_NEGATIVE).setText(android.R.string.ok)
+            }
+        }
+        test.cancel = {
+            mainJob.cancel()
+            runOnDefaultDispatcher {
+                GroupManager.postReload(DataStore.currentGroupId())
             }
-            val profiles = ConcurrentLinkedQueue(profilesUnfiltered)
+        }
+    }
+
+    fun speedTest() {
+        val test = TestDialog(true)
+        val dialog = test.builder.show()
+
+        val mainJob = runOnDefaultDispatcher {
+            val group = DataStore.currentGroup()
+            val profilesUnfiltered = testProfiles(group)
             stopService()
 
-            val link = DataStore.connectionTestURL
+            val link = DataStore.speedTestURL
             val timeout = 5000
 
-            repeat(6) {
-                testJobs.add(launch {
-                    while (isActive) {
-                        val profile = profiles.poll() ?: break
-                        profile.status = 0
-                        test.insert(profile)
+            // profiles are measured one by one, parallel downloads would share the same link
+            for (profile in profilesUnfiltered) {
+                if (!isActive) break
+                profile.speedStatus = 0
+                test.insert(profile)
 
-                        try {
-                            val instance = V2RayTestInstance(profile, link, timeout)
-                            val result = instance.use {
-                                it.doTest()
-                            }
-                            profile.status = 1
-                            profile.ping = result
-                        } catch (e: PluginManager.PluginNotFoundException) {
-                            profile.status = -1
-                            profile.error = e.readableMessage
-                        } catch (e: Exception) {
-                            profile.status = 3
-                            profile.error = e.readableMessage
-                        }
+                try {
+                    val result = V2RayThroughputTestInstance(profile, link, timeout).use {
+                        it.doTest()
+                    }
+                    profile.speedStatus = 1
+                    profile.speed = result.speed
+                    profile.speedTtfb = result.ttfb
+                    profile.speedDeviation = result.deviation
+                    profile.speedError = null
+                } catch (e: PluginManager.PluginNotFoundException) {
+                    profile.speedStatus = -1
+                    profile.speedError = e.readableMessage
+                } catch (e: Exception) {
+                    profile.speedStatus = 3
+                    profile.speedError = e.readableMessage
+                    profile.speed = 0
+                    profile.speedTtfb = 0
+                    profile.speedDeviation = 0
+                }
 
-                        test.update(profile)
-                        ProfileManager.updateProfile(profile)
-                    }
-                })
+                test.update(profile)
+                ProfileManager.updateProfile(profile)
             }
-
-            testJobs.joinAll()
             test.close()
             onMainDispatcher {
                 test.binding.progressCircular.isGone = true
@@ -1189,6 +1303,10 @@ class ConfigurationFragment @JvmOverloads constructor(
             }
         }
 
+        override suspend fun onAdd(profiles: List<ProxyEntity>) {
+            onAdd(profiles.firstOrNull() ?: return)
+        }
+
         override suspend fun onUpdated(profileId: Long, trafficStats: TrafficStats) = Unit
 
         override suspend fun onUpdated(profile: ProxyEntity) = Unit
@@ -1275,6 +1393,7 @@ class ConfigurationFragment @JvmOverloads constructor(
             val origin = menu.findItem(R.id.action_order_origin)
             val byName = menu.findItem(R.id.action_order_by_name)
             val byDelay = menu.findItem(R.id.action_order_by_delay)
+            val bySpeed = menu.findItem(R.id.action_order_by_speed)
             when (proxyGroup.order) {
                 GroupOrder.ORIGIN -> {
                     origin.isChecked = true
@@ -1285,6 +1404,9 @@ class ConfigurationFragment @JvmOverloads constructor(
                 GroupOrder.BY_DELAY -> {
                     byDelay.isChecked = true
                 }
+                GroupOrder.BY_SPEED -> {
+                    bySpeed.isChecked = true
+                }
             }
 
             fun updateTo(order: Int) {
@@ -1310,6 +1432,11 @@ class ConfigurationFragment @JvmOverloads constructor(
                 updateTo(GroupOrder.BY_DELAY)
                 true
             }
+            bySpeed.setOnMenuItemClickListener {
+                it.isChecked = true
+                updateTo(GroupOrder.BY_SPEED)
+                true
+            }
         }
 
         override fun onViewCreated(view: View, savedInstanceState: Bundle?) {
@@ -1445,7 +1572,7 @@ class ConfigurationFragment @JvmOverloads constructor(
                 return configurationIdList.size
             }
 
-            private val updated = HashSet<ProxyEntity>()
+            private val moved = LinkedHashSet<Long>()
 
             fun filter(name: String) {
                 if (name.isEmpty()) {
@@ -1463,28 +1590,44 @@ class ConfigurationFragment @JvmOverloads constructor(
             }
 
             fun move(from: Int, to: Int) {
-                val first = getItemAt(from)
-                var previousOrder = first.userOrder
-                val (step, range) = if (from < to) Pair(1, from until to) else Pair(
-                    -1, to + 1 downTo from
-                )
-                for (i in range) {
-                    val next = getItemAt(i + step)
-                    val order = next.userOrder
-                    next.userOrder = previousOrder
-                    previousOrder = order
-                    configurationIdList[i] = next.id
-                    updated.add(next)
-                }
-                first.userOrder = previousOrder
-                configurationIdList[to] = first.id
-                updated.add(first)
+                val id = configurationIdList.removeAt(from)
+                configurationIdList.add(to, id)
+                moved.add(id)
                 notifyItemMoved(from, to)
             }
 
-            fun commitMove() = runOnDefaultDispatcher {
-                updated.forEach { SagerDatabase.proxyDao.updateProxy(it) }
-                updated.clear()
+            fun commitMove() {
+                if (moved.isEmpty()) return
+                val profiles = configurationIdList.map { getItem(it) }
+                val movedProfiles = moved.map { getItem(it) }
+                moved.clear()
+                runOnDefaultDispatcher {
+                    // profiles whose key already matches their position, the rest are skipped
+                    // when looking for neighbours so that previous < next always holds
+                    val settled = profiles.mapTo(HashSet()) { it.id }
+                    movedProfiles.forEach { settled.remove(it.id) }
+                    for (profile in movedProfiles) {
+                        val index = profiles.indexOfFirst { it.id == profile.id }
+                        if (index < 0) continue
+                        val previous = profiles.subList(0, index).lastOrNull { it.id in settled }
+                        val next = profiles.subList(index + 1, profiles.size)
+                            .firstOrNull { it.id in settled }
+                        var order = GroupManager.orderBetween(previous?.userOrder, next?.userOrder)
+                        if (order == null) {
+                            val orders = GroupManager.rearrange(proxyGroup.id)
+                            for (entity in profiles) {
+                                entity.userOrder = orders[entity.id] ?: continue
+                            }
+                            // only when the list is not shown in key order, e.g. sorted by name
+                            order = GroupManager.orderBetween(
+                                previous?.userOrder, next?.userOrder
+                            ) ?: continue
+                        }
+                        profile.userOrder = order
+                        SagerDatabase.proxyDao.updateOrder(profile.id, order)
+                        settled.add(profile.id)
+                    }
+                }
             }
 
             fun remove(pos: Int) {
@@ -1525,6 +1668,23 @@ class ConfigurationFragment @JvmOverloads constructor(
                 }
             }
 
+            override suspend fun onAdd(profiles: List<ProxyEntity>) {
+                val added = profiles.filter { it.groupId == proxyGroup.id }
+                if (added.isEmpty()) return
+
+                configurationListView.post {
+                    if (::undoManager.isInitialized) {
+                        undoManager.flush()
+                    }
+                    val pos = itemCount
+                    for (profile in added) {
+                        configurationList[profile.id] = profile
+                        configurationIdList.add(profile.id)
+                    }
+                    notifyItemRangeInserted(pos, added.size)
+                }
+            }
+
             override suspend fun onUpdated(profile: ProxyEntity) {
                 if (profile.groupId != proxyGroup.id) return
                 val index = configurationIdList.indexOf(profile.id)
@@ -1610,7 +1770,18 @@ class ConfigurationFragment @JvmOverloads constructor(
 
                     }
                     GroupOrder.BY_DELAY -> {
-                        newProfiles = newProfiles.sortedBy { if (it.status == 1) it.ping else 114514 }
+                        // health check scores and url test pings are not comparable,
+                        // so pings only order the profiles without a score
+                        val scores = SagerDatabase.probeStatsDao.getByGroup(proxyGroup.id)
+                            .associate { it.profileId to it.score }
+                        newProfiles = newProfiles.sortedWith(compareBy({
+                            scores[it.id] ?: Int.MAX_VALUE
+                        }, {
+                            if (it.status == 1) it.ping else 114514
+                        }))
+                    }
+                    GroupOrder.BY_SPEED -> {
+                        newProfiles = newProfiles.sortedByDescending { it.speed }
                     }
                 }
 
@@ -1739,7 +1910,10 @@ class ConfigurationFragment @JvmOverloads constructor(
                 profileAddress.text = address
                 (trafficText.parent as View).isGone = (!showTraffic || proxyEntity.status <= 0) && address.isBlank()
 
-                if (proxyEntity.status <= 0) {
+                if (proxyEntity.speedStatus == 1 && proxyEntity.status <= 1) {
+                    profileStatus.text = speedText(proxyEntity)
+                    profileStatus.setTextColor(requireContext().getColour(R.color.material_green_500))
+                } else if (proxyEntity.status <= 0) {
                     if (showTraffic) {
                         profileStatus.text = trafficText.text
                         profileStatus.setTextColor(requireContext().getColorAttr(android.R.attr.textColorSecondary))
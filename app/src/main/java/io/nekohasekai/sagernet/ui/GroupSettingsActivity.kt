@@ -67,6 +67,7 @@ class GroupSettingsActivity(
         DataStore.groupName = name ?: ""
         DataStore.groupType = type
         DataStore.groupOrder = order
+        DataStore.groupHealthCheckInterval = healthCheckInterval
         val subscription = subscription ?: SubscriptionBean().applyDefaultValues()
         DataStore.subscriptionType = subscription.type
         DataStore.subscriptionLink = subscription.link
@@ -88,6 +89,7 @@ class GroupSettingsActivity(
             ?: ("My group " + System.currentTimeMillis() / 1000)
         type = DataStore.groupType
         order = DataStore.groupOrder
+        healthCheckInterval = DataStore.groupHealthCheckInterval
 
         frontProxy = if (DataStore.frontProxy == 1) DataStore.frontProxyOutbound else -1
         landingProxy = if (DataStore.landingProxy == 1) DataStore.landingProxyOutbound else -1
@@ -193,6 +195,10 @@ class GroupSettingsActivity(
             true
         }
 
+        findPreference<EditTextPreference>(Key.GROUP_HEALTH_CHECK_INTERVAL)!!.setOnPreferenceChangeListener { _, newValue ->
+            NumberUtil.isInteger(newValue as String) && newValue.toInt() >= 0
+        }
+
         val subscriptionAutoUpdate = findPreference<SwitchPreference>(Key.SUBSCRIPTION_AUTO_UPDATE)!!
         val subscriptionAutoUpdateDelay = findPreference<EditTextPreference>(Key.SUBSCRIPTION_AUTO_UPDATE_DELAY)!!
         subscriptionAutoUpdateDelay.isEnabled = subscriptionAutoUpdate.isChecked
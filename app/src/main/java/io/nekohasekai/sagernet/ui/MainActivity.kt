@@ -47,7 +47,7 @@ import com.google.android.material.dialog.MaterialAlertDialogBuilder
 import com.google.android.material.navigation.NavigationView
 import com.google.android.material.snackbar.Snackbar
 import io.nekohasekai.sagernet.*
-import io.nekohasekai.sagernet.aidl.AppStats
+import io.nekohasekai.sagernet.aidl.AppStatsList
 import io.nekohasekai.sagernet.aidl.ISagerNetService
 import io.nekohasekai.sagernet.aidl.TrafficStats
 import io.nekohasekai.sagernet.bg.BaseService
@@ -62,6 +62,7 @@ import io.nekohasekai.sagernet.fmt.PluginEntry
 import io.nekohasekai.sagernet.group.GroupInterfaceAdapter
 import io.nekohasekai.sagernet.group.GroupUpdater
 import io.nekohasekai.sagernet.ktx.*
+import io.nekohasekai.sagernet.utils.HostResolver
 import io.noties.markwon.Markwon
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
@@ -374,7 +375,8 @@ class MainActivity : ThemedActivity(),
         val started = state == BaseService.State.Connected
 
         if (!started) {
-            statsUpdated(emptyList())
+            statsUpdated(AppStatsList(emptyList()))
+            HostResolver.closeClients()
         }
 
         binding.fab.changeState(state, this.state, animate)
@@ -384,7 +386,7 @@ class MainActivity : ThemedActivity(),
 
         when (state) {
             BaseService.State.Connected, BaseService.State.Stopped -> {
-                statsUpdated(emptyList())
+                statsUpdated(AppStatsList(emptyList()))
             }
             else -> {}
         }
@@ -402,7 +404,7 @@ class MainActivity : ThemedActivity(),
         changeState(state, msg, true)
     }
 
-    override fun statsUpdated(stats: List<AppStats>) {
+    override fun statsUpdated(stats: AppStatsList) {
         (supportFragmentManager.findFragmentById(R.id.fragment_holder) as? TrafficFragment)?.emitStats(
             stats
         )
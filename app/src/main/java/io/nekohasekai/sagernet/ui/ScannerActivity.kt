@@ -185,9 +185,7 @@ class ScannerActivity : ThemedActivity() {
                         DataStore.selectedGroup = currentGroupId
                     }
 
-                    for (profile in results) {
-                        ProfileManager.createProfile(currentGroupId, profile)
-                    }
+                    ProfileManager.createProfiles(currentGroupId, results)
                 }
             } catch (e: SubscriptionFoundException) {
                 startActivity(Intent(this@ScannerActivity, MainActivity::class.java).apply {
@@ -257,9 +255,7 @@ class ScannerActivity : ThemedActivity() {
                                             DataStore.selectedGroup = currentGroupId
                                         }
 
-                                        for (profile in results) {
-                                            ProfileManager.createProfile(currentGroupId, profile)
-                                        }
+                                        ProfileManager.createProfiles(currentGroupId, results)
                                     }
                                 }
                             } else {
@@ -52,11 +52,12 @@ class StatsFragment : Fragment(R.layout.layout_traffic_list) {
         (parentFragment as TrafficFragment).listeners.add(::emitStats)
 
         runOnDefaultDispatcher {
-            emitStats(emptyList())
+            emitStats()
         }
     }
 
-    fun emitStats(statsList: List<AppStats>) {
+    fun emitStats() {
+        val statsList = (parentFragment as? TrafficFragment)?.snapshot() ?: emptyList()
         var data = statsList.associate { it.packageName to it.copy() }.toMutableMap()
         for (stats in SagerDatabase.statsDao.all()) {
             if (data.containsKey(stats.packageName)) {
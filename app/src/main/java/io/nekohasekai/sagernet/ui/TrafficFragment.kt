@@ -26,6 +26,7 @@ import android.net.Uri
 import android.os.Bundle
 import android.provider.Settings
 import android.view.MenuItem
+import android.util.SparseArray
 import android.view.View
 import androidx.activity.result.contract.ActivityResultContracts
 import androidx.appcompat.widget.PopupMenu
@@ -35,10 +36,12 @@ import androidx.core.view.WindowInsetsCompat
 import androidx.core.view.updatePadding
 import androidx.fragment.app.Fragment
 import androidx.viewpager2.adapter.FragmentStateAdapter
+import androidx.viewpager2.widget.ViewPager2
 import com.google.android.material.tabs.TabLayoutMediator
 import io.nekohasekai.sagernet.R
 import io.nekohasekai.sagernet.SagerNet
 import io.nekohasekai.sagernet.aidl.AppStats
+import io.nekohasekai.sagernet.aidl.AppStatsList
 import io.nekohasekai.sagernet.databinding.LayoutTrafficBinding
 import io.nekohasekai.sagernet.ktx.*
 import io.nekohasekai.sagernet.utils.PackageCache
@@ -104,16 +107,28 @@ class TrafficFragment : ToolbarFragment(R.layout.layout_traffic),
                 true
             }
         }.attach()
+        binding.trafficPager.registerOnPageChangeCallback(object : ViewPager2.OnPageChangeCallback() {
+            override fun onPageSelected(position: Int) {
+                selectPage(position)
+            }
+        })
+        selectPage(binding.trafficPager.currentItem)
 
         (requireActivity() as MainActivity).connection.trafficTimeout = 1500
     }
 
+    // the active page only shows the busiest apps, the service does not need to send the rest
+    private fun selectPage(position: Int) {
+        limit = if (position == 0) ActiveFragment.ACTIVE_LIMIT else 0
+        (requireActivity() as MainActivity).connection.trafficLimit = limit
+    }
+
     override fun onMenuItemClick(item: MenuItem): Boolean {
         when (item.itemId) {
             R.id.action_clear_traffic_statistics -> {
                 (requireActivity() as MainActivity).connection.service?.resetTrafficStats()
                 runOnDefaultDispatcher {
-                    emitStats(emptyList())
+                    emitStats(AppStatsList(emptyList()))
                 }
             }
         }
@@ -135,11 +150,29 @@ class TrafficFragment : ToolbarFragment(R.layout.layout_traffic),
 
     }
 
-    val listeners = mutableListOf<(List<AppStats>) -> Unit>()
+    // the deltas from the service applied in place, keyed by uid
+    private val appStats = SparseArray<AppStats>()
+
+    @Volatile
+    private var limit = 0
 
-    fun emitStats(statsList: List<AppStats>) {
+    // ranked by the service while the active page is shown
+    @Volatile
+    var topStats: List<AppStats> = emptyList()
+
+    val listeners = mutableListOf<() -> Unit>()
+
+    fun snapshot() = synchronized(appStats) { List(appStats.size()) { appStats.valueAt(it) } }
+
+    fun emitStats(statsList: AppStatsList) {
+        if (limit > 0 || statsList.full && statsList.data.isEmpty()) topStats = statsList.data
+        if (limit <= 0) synchronized(appStats) {
+            if (statsList.full) appStats.clear()
+            for (uid in statsList.removed) appStats.remove(uid)
+            for (entry in statsList.data) appStats.put(entry.uid, entry)
+        }
         runOnDefaultDispatcher {
-            for (listener in listeners) listener(statsList)
+            for (listener in listeners) listener()
         }
     }
 
@@ -159,6 +192,7 @@ class TrafficFragment : ToolbarFragment(R.layout.layout_traffic),
         super.onDestroy()
 
         (requireActivity() as MainActivity).connection.trafficTimeout = 0
+        (requireActivity() as MainActivity).connection.trafficLimit = 0
     }
 
     val createRule = registerForActivityResult(ActivityResultContracts.StartActivityForResult()) {
@@ -0,0 +1,183 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2021 by nekohasekai <contact-sagernet@sekai.icu>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+
+package io.nekohasekai.sagernet.utils
+
+import io.nekohasekai.sagernet.ktx.parseNumericAddress
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import kotlinx.coroutines.withContext
+import libcore.HTTPClient
+import libcore.Libcore
+import java.net.InetAddress
+import java.net.UnknownHostException
+import java.nio.ByteBuffer
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Shared host name resolution for tests and subscription updates.
+ *
+ * Answers are cached for their TTL (failures for [NEGATIVE_TTL]), concurrent lookups of the
+ * same name share one query and at most [MAX_QUERIES] queries run at a time. DoH queries go
+ * through one keep-alive client per server, so they are multiplexed on its connections.
+ */
+object HostResolver {
+
+    private const val MAX_QUERIES = 8
+    private const val MIN_TTL = 30_000L
+    private const val MAX_TTL = 3600_000L
+    private const val SYSTEM_TTL = 60_000L
+    private const val NEGATIVE_TTL = 30_000L
+
+    private const val TYPE_A = 1
+    private const val TYPE_AAAA = 28
+    private const val RCODE_NXDOMAIN = 3
+
+    private class Entry(val addresses: List<InetAddress>, val expiresAt: Long)
+
+    private val cache = ConcurrentHashMap<String, Entry>()
+    private val inFlight = ConcurrentHashMap<String, CompletableDeferred<Entry>>()
+    private val queries = Semaphore(MAX_QUERIES)
+    private val clients = ConcurrentHashMap<String, HTTPClient>()
+
+    suspend fun resolve(host: String): List<InetAddress> {
+        host.parseNumericAddress()?.let { return listOf(it) }
+        return lookup("system|$host") {
+            try {
+                val addresses = withContext(Dispatchers.IO) { InetAddress.getAllByName(host).toList() }
+                Entry(addresses, System.currentTimeMillis() + SYSTEM_TTL)
+            } catch (e: UnknownHostException) {
+                Entry(listOf(), System.currentTimeMillis() + NEGATIVE_TTL)
+            }
+        }.takeIf { it.isNotEmpty() } ?: throw UnknownHostException(host)
+    }
+
+    /**
+     * Resolves [host] with the DoH server [url], [socksPort] routes the queries through the proxy.
+     */
+    suspend fun resolve(host: String, url: String, ipv6Mode: Int, socksPort: Int = 0): List<InetAddress> {
+        host.parseNumericAddress()?.let { return listOf(it) }
+        return lookup("$url|$socksPort|$ipv6Mode|$host") {
+            val client = clients.getOrPut("$url|$socksPort") {
+                Libcore.newHttpClient().apply {
+                    modernTLS()
+                    keepAlive()
+                    if (socksPort > 0) useSocks5(socksPort)
+                }
+            }
+            val response = withContext(Dispatchers.IO) {
+                client.newRequest().apply {
+                    setMethod("POST")
+                    setURL(url)
+                    setContent(Libcore.encodeDomainNameSystemQuery(1, host, ipv6Mode))
+                    setHeader("Accept", "application/dns-message")
+                    setHeader("Content-Type", "application/dns-message")
+                }.execute()
+            }
+            parseResponse(response.content)
+        }.takeIf { it.isNotEmpty() } ?: throw UnknownHostException(host)
+    }
+
+    /**
+     * Closes the DoH clients, the ones going through the socks port of a stopped service
+     * would otherwise keep their connections forever.
+     */
+    fun closeClients() {
+        for (key in clients.keys) {
+            clients.remove(key)?.close()
+        }
+    }
+
+    private suspend fun lookup(key: String, query: suspend () -> Entry): List<InetAddress> {
+        cache[key]?.let {
+            if (it.expiresAt > System.currentTimeMillis()) return it.addresses
+            cache.remove(key, it)
+        }
+        val deferred = CompletableDeferred<Entry>()
+        val running = inFlight.putIfAbsent(key, deferred)
+        if (running != null) return running.await().addresses
+        try {
+            val entry = queries.withPermit { query() }
+            cache[key] = entry
+            deferred.complete(entry)
+            return entry.addresses
+        } catch (e: Throwable) {
+            // transient failures are not cached, waiters get the same error
+            deferred.completeExceptionally(e)
+            throw e
+        } finally {
+            inFlight.remove(key, deferred)
+        }
+    }
+
+    private fun parseResponse(message: ByteArray): Entry {
+        val buffer = ByteBuffer.wrap(message)
+        buffer.position(2)
+        val rcode = buffer.short.toInt() and 0x0F
+        val questions = buffer.short.toInt() and 0xFFFF
+        val answers = buffer.short.toInt() and 0xFFFF
+        buffer.position(12)
+        if (rcode == RCODE_NXDOMAIN) {
+            return Entry(listOf(), System.currentTimeMillis() + NEGATIVE_TTL)
+        } else if (rcode != 0) {
+            error("rcode $rcode")
+        }
+        repeat(questions) {
+            skipName(buffer)
+            buffer.position(buffer.position() + 4)
+        }
+        val addresses = ArrayList<InetAddress>()
+        var ttl = MAX_TTL
+        repeat(answers) {
+            skipName(buffer)
+            val type = buffer.short.toInt() and 0xFFFF
+            buffer.short // class
+            val recordTtl = buffer.int.toLong() and 0xFFFFFFFFL
+            val length = buffer.short.toInt() and 0xFFFF
+            val data = ByteArray(length)
+            buffer.get(data)
+            if (type == TYPE_A && length == 4 || type == TYPE_AAAA && length == 16) {
+                addresses.add(InetAddress.getByAddress(data))
+                ttl = minOf(ttl, recordTtl * 1000)
+            }
+        }
+        if (addresses.isEmpty()) {
+            return Entry(listOf(), System.currentTimeMillis() + NEGATIVE_TTL)
+        }
+        return Entry(addresses, System.currentTimeMillis() + ttl.coerceIn(MIN_TTL, MAX_TTL))
+    }
+
+    private fun skipName(buffer: ByteBuffer) {
+        while (true) {
+            val length = buffer.get().toInt() and 0xFF
+            when {
+                length == 0 -> return
+                length and 0xC0 == 0xC0 -> {
+                    buffer.get()
+                    return
+                }
+                else -> buffer.position(buffer.position() + length)
+            }
+        }
+    }
+
+}
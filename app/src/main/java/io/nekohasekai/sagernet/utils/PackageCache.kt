@@ -20,7 +20,6 @@
 package io.nekohasekai.sagernet.utils
 
 import android.Manifest
-import android.annotation.SuppressLint
 import android.content.pm.ApplicationInfo
 import android.content.pm.PackageInfo
 import android.content.pm.PackageManager
@@ -29,50 +28,95 @@ import io.nekohasekai.sagernet.ktx.listenForPackageChanges
 import kotlinx.coroutines.runBlocking
 import kotlinx.coroutines.sync.Mutex
 import kotlinx.coroutines.sync.withLock
+import java.util.concurrent.ConcurrentHashMap
 
+/**
+ * One indexed snapshot of installed packages, shared by the app list, uid rules and uid lookups.
+ *
+ * The snapshot is loaded once, then a package broadcast only re-queries the affected package.
+ * Updates swap in a new snapshot, so readers never see a partially updated index.
+ */
 object PackageCache {
 
-    lateinit var installedPackages: Map<String, PackageInfo>
-    lateinit var installedApps: Map<String, ApplicationInfo>
-    lateinit var packageMap: Map<String, Int>
-    val uidMap = HashMap<Int, HashSet<String>>()
+    private class Index(
+        // packages that may use the network
+        val installedPackages: Map<String, PackageInfo>,
+        val installedApps: Map<String, ApplicationInfo>,
+        val uidMap: Map<Int, Set<String>>,
+    )
+
+    @Volatile
+    private var index: Index? = null
     val loaded = Mutex(true)
 
+    // empty until the first reload, the service may look up uids before that
+    val installedPackages get() = index?.installedPackages ?: emptyMap()
+    val installedApps get() = index?.installedApps ?: emptyMap()
+    val uidMap get() = index?.uidMap ?: emptyMap()
+
+    private const val FLAGS = PackageManager.GET_PERMISSIONS or PackageManager.GET_META_DATA
+
     fun register() {
         reload()
-        app.listenForPackageChanges(false) {
-            reload()
-            labelMap.clear()
+        app.listenForPackageChanges(false) { intent ->
+            val packageName = intent.data?.schemeSpecificPart
+            if (packageName.isNullOrEmpty()) reload() else update(packageName)
         }
         loaded.unlock()
     }
 
-    @SuppressLint("InlinedApi")
+    private fun PackageInfo.usesNetwork() = when (packageName) {
+        "android" -> true
+        else -> requestedPermissions?.contains(Manifest.permission.INTERNET) == true
+    }
+
     fun reload() {
-        installedPackages = app.packageManager.getInstalledPackages(PackageManager.GET_PERMISSIONS)
-            .filter {
-                when (it.packageName) {
-                    "android" -> true
-                    else -> it.requestedPermissions?.contains(Manifest.permission.INTERNET) == true
-                }
+        val packages = app.packageManager.getInstalledPackages(FLAGS)
+        val uids = HashMap<Int, HashSet<String>>()
+        val apps = HashMap<String, ApplicationInfo>()
+        for (info in packages) {
+            val appInfo = info.applicationInfo ?: continue
+            apps[info.packageName] = appInfo
+            uids.getOrPut(appInfo.uid) { HashSet() }.add(info.packageName)
+        }
+        synchronized(this) {
+            index = Index(packages.filter { it.usesNetwork() }.associateBy { it.packageName }, apps, uids)
+        }
+        labelMap.clear()
+    }
+
+    private fun update(packageName: String) {
+        val info = try {
+            app.packageManager.getPackageInfo(packageName, FLAGS)
+        } catch (_: PackageManager.NameNotFoundException) {
+            null
+        }
+        synchronized(this) {
+            val current = index ?: return
+            val packages = HashMap(current.installedPackages)
+            val apps = HashMap(current.installedApps)
+            val uids = HashMap(current.uidMap)
+            packages.remove(packageName)
+            apps.remove(packageName)?.also { old ->
+                val names = uids[old.uid].orEmpty() - packageName
+                if (names.isEmpty()) uids.remove(old.uid) else uids[old.uid] = names
+            }
+            val appInfo = info?.applicationInfo
+            if (info != null && appInfo != null) {
+                if (info.usesNetwork()) packages[packageName] = info
+                apps[packageName] = appInfo
+                uids[appInfo.uid] = uids[appInfo.uid].orEmpty() + packageName
             }
-            .associateBy { it.packageName }
-
-        val installed = app.packageManager.getInstalledApplications(PackageManager.GET_META_DATA)
-        installedApps = installed.associateBy { it.packageName }
-        packageMap = installed.associate { it.packageName to it.uid }
-        uidMap.clear()
-        for (info in installed) {
-            val uid = info.uid
-            uidMap.getOrPut(uid) { HashSet() }.add(info.packageName)
+            index = Index(packages, apps, uids)
         }
+        labelMap.remove(packageName)
     }
 
-    operator fun get(uid: Int) = uidMap[uid]
-    operator fun get(packageName: String) = packageMap[packageName]
+    operator fun get(uid: Int) = index?.uidMap?.get(uid)
+    operator fun get(packageName: String) = index?.installedApps?.get(packageName)?.uid
 
     suspend fun awaitLoad() {
-        if (::packageMap.isInitialized) {
+        if (index != null) {
             return
         }
         loaded.withLock {
@@ -81,7 +125,7 @@ object PackageCache {
     }
 
     fun awaitLoadSync() {
-        if (::packageMap.isInitialized) {
+        if (index != null) {
             return
         }
         runBlocking {
@@ -91,7 +135,7 @@ object PackageCache {
         }
     }
 
-    private val labelMap = mutableMapOf<String, String>()
+    private val labelMap = ConcurrentHashMap<String, String>()
     fun loadLabel(packageName: String): String {
         var label = labelMap[packageName]
         if (label != null) return label
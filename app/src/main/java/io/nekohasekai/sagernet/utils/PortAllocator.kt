@@ -0,0 +1,98 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2021 by nekohasekai <contact-sagernet@sekai.icu>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+package io.nekohasekai.sagernet.utils
+
+import java.io.IOException
+import java.net.InetSocketAddress
+import java.net.Socket
+
+/**
+ * Local ports for inbounds, plugins and mappings.
+ *
+ * A port stays bound here from the config build until [handOver], right before the core and
+ * plugins bind it themselves, so concurrent builds can not be given the same port. Handed over
+ * ports remain owned until [recycle], and are not given out again while their consumer starts.
+ */
+object PortAllocator {
+
+    private val held = HashMap<Int, Socket>()
+    private val owned = HashSet<Int>()
+
+    fun allocate(): Int {
+        synchronized(this) {
+            val rejected = ArrayList<Socket>()
+            try {
+                while (true) {
+                    val socket = Socket()
+                    socket.bind(InetSocketAddress(0))
+                    val port = socket.localPort
+                    if (owned.add(port)) {
+                        held[port] = socket
+                        return port
+                    }
+                    // handed over but not bound by its consumer yet, keep it busy while retrying
+                    rejected.add(socket)
+                }
+            } finally {
+                rejected.forEach { it.close() }
+            }
+        }
+    }
+
+    /**
+     * Reserve specific ports, e.g. those of a cached config. Either all are reserved or none.
+     */
+    fun claim(ports: Collection<Int>): Boolean {
+        synchronized(this) {
+            if (ports.any { it in owned }) return false
+            val sockets = HashMap<Int, Socket>()
+            for (port in ports) {
+                val socket = Socket()
+                try {
+                    socket.bind(InetSocketAddress(port))
+                } catch (_: IOException) {
+                    socket.close()
+                    sockets.values.forEach { it.close() }
+                    return false
+                }
+                sockets[port] = socket
+            }
+            owned.addAll(ports)
+            held.putAll(sockets)
+            return true
+        }
+    }
+
+    fun handOver(ports: Collection<Int>) {
+        synchronized(this) {
+            for (port in ports) held.remove(port)?.close()
+        }
+    }
+
+    fun recycle(ports: Collection<Int>) {
+        synchronized(this) {
+            for (port in ports) {
+                held.remove(port)?.close()
+                owned.remove(port)
+            }
+        }
+    }
+
+}
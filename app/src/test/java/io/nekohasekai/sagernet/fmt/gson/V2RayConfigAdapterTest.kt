@@ -0,0 +1,199 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2021 by nekohasekai <contact-sagernet@sekai.icu>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+package io.nekohasekai.sagernet.fmt.gson
+
+import com.google.gson.Gson
+import com.google.gson.JsonParser
+import com.google.gson.annotations.SerializedName
+import io.nekohasekai.sagernet.fmt.v2ray.V2RayConfig
+import io.nekohasekai.sagernet.fmt.v2ray.V2RayConfig.*
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.lang.reflect.Field
+import java.lang.reflect.Modifier
+
+class V2RayConfigAdapterTest {
+
+    private val reflective = newGsonBuilder(false).create()
+    private val handWritten = newGsonBuilder().create()
+
+    // every class with a hand-written writer in V2RayConfigAdapterFactory
+    private val covered = listOf(
+        V2RayConfig::class.java,
+        DnsObject::class.java,
+        DnsObject.ServerObject::class.java,
+        RoutingObject::class.java,
+        RoutingObject.RuleObject::class.java,
+        InboundObject::class.java,
+        OutboundObject::class.java,
+        StreamSettingsObject::class.java,
+        StreamSettingsObject.SockoptObject::class.java,
+    )
+
+    /**
+     * Fails when a field of a covered class is not written, e.g. one added to V2RayConfig later.
+     */
+    @Test
+    fun writesEveryField() {
+        for (clazz in covered) {
+            val value = populate(clazz)
+            val expected = JsonParser.parseString(reflective.toJson(value)).asJsonObject
+            for (field in fields(clazz)) {
+                val name = field.getAnnotation(SerializedName::class.java)?.value ?: field.name
+                assertTrue("${clazz.simpleName}.${field.name} is not populated by the test", expected.has(name))
+            }
+            assertEquals(clazz.simpleName, expected, JsonParser.parseString(handWritten.toJson(value)))
+        }
+    }
+
+    @Test
+    fun readsWhatItWrites() {
+        val json = handWritten.toJson(sampleConfig())
+        val config = handWritten.fromJson(json, V2RayConfig::class.java).apply { init() }
+        assertEquals(JsonParser.parseString(json), JsonParser.parseString(handWritten.toJson(config)))
+    }
+
+    /**
+     * Cold is the first serialization on a fresh [Gson], which includes creating the adapters,
+     * warm is the average of the following rounds.
+     */
+    @Test
+    fun benchmark() {
+        val config = sampleConfig()
+        // load the gson classes once so the first cold run is not charged for them
+        measure(newGsonBuilder(false).create(), config, 1)
+        val reflective = measure(newGsonBuilder(false).create(), config, ROUNDS)
+        val handWritten = measure(newGsonBuilder().create(), config, ROUNDS)
+        assertEquals(JsonParser.parseString(reflective.json), JsonParser.parseString(handWritten.json))
+        println("Config serialization (${reflective.json.length} chars): " +
+                "reflective cold ${reflective.cold / 1000}us warm ${reflective.warm / 1000}us, " +
+                "hand-written cold ${handWritten.cold / 1000}us warm ${handWritten.warm / 1000}us")
+    }
+
+    private fun fields(clazz: Class<*>): List<Field> = clazz.declaredFields.filter {
+        !Modifier.isStatic(it.modifiers) && !Modifier.isTransient(it.modifiers) && !it.isSynthetic
+    }
+
+    // a non-null value for every field, nested objects are left empty
+    private fun populate(clazz: Class<*>): Any {
+        val value = clazz.getDeclaredConstructor().newInstance()
+        for (field in fields(clazz)) {
+            field.isAccessible = true
+            field.set(value, when (val type = field.type) {
+                String::class.java -> "value"
+                Integer::class.java, Int::class.java -> 1
+                java.lang.Long::class.java, Long::class.java -> 1L
+                java.lang.Boolean::class.java, Boolean::class.java -> true
+                List::class.java -> ArrayList<Any>()
+                Map::class.java -> HashMap<Any, Any>()
+                LazyInboundConfigurationObject::class.java -> LazyInboundConfigurationObject(
+                    value as InboundObject, SocksInboundConfigurationObject()
+                )
+                LazyOutboundConfigurationObject::class.java -> LazyOutboundConfigurationObject(
+                    value as OutboundObject, FreedomOutboundConfigurationObject()
+                )
+                else -> type.getDeclaredConstructor().newInstance()
+            })
+        }
+        // the settings type is picked by protocol
+        when (value) {
+            is InboundObject -> value.protocol = "socks"
+            is OutboundObject -> value.protocol = "freedom"
+        }
+        return value
+    }
+
+    private class Measurement(val json: String, val cold: Long, val warm: Long)
+
+    private fun measure(gson: Gson, config: V2RayConfig, rounds: Int): Measurement {
+        var start = System.nanoTime()
+        val json = gson.toJson(config)
+        val cold = System.nanoTime() - start
+        start = System.nanoTime()
+        repeat(rounds) { gson.toJson(config) }
+        return Measurement(json, cold, (System.nanoTime() - start) / rounds)
+    }
+
+    companion object {
+        private const val ROUNDS = 100
+    }
+
+}
+
+private fun sampleConfig() = V2RayConfig().apply {
+    log = LogObject().apply { loglevel = "warning" }
+    dns = DnsObject().apply {
+        hosts = mapOf("domain:googleapis.cn" to "googleapis.com")
+        servers = listOf("https://1.1.1.1/dns-query", "223.5.5.5").map {
+            DnsObject.StringOrServerObject().apply { valueX = it }
+        }
+    }
+    inbounds = listOf(InboundObject().apply {
+        tag = "socks"
+        listen = "127.0.0.1"
+        port = 2080
+        protocol = "socks"
+        settings = LazyInboundConfigurationObject(this, SocksInboundConfigurationObject().apply {
+            auth = "noauth"
+            udp = true
+        })
+        sniffing = InboundObject.SniffingObject().apply {
+            enabled = true
+            destOverride = listOf("http", "tls")
+        }
+    })
+    outbounds = List(8) { index ->
+        OutboundObject().apply {
+            tag = "proxy-$index"
+            protocol = "vmess"
+            settings = LazyOutboundConfigurationObject(this,
+                VMessOutboundConfigurationObject().apply {
+                    vnext = listOf(VMessOutboundConfigurationObject.ServerObject().apply {
+                        address = "example.com"
+                        port = 443
+                        users = listOf(VMessOutboundConfigurationObject.ServerObject.UserObject()
+                            .apply {
+                                id = "b831381d-6324-4d53-ad4f-8cda48b30811"
+                                security = "auto"
+                            })
+                    })
+                })
+            streamSettings = StreamSettingsObject().apply {
+                network = "ws"
+                security = "tls"
+                tlsSettings = TLSObject().apply { serverName = "example.com" }
+                wsSettings = WebSocketObject().apply { path = "/ws" }
+                sockopt = StreamSettingsObject.SockoptObject().apply { mark = 0xff }
+            }
+        }
+    }
+    routing = RoutingObject().apply {
+        domainStrategy = "IPIfNonMatch"
+        rules = List(200) { index ->
+            RoutingObject.RuleObject().apply {
+                type = "field"
+                domain = listOf("domain:example$index.com", "geosite:category-ads-all")
+                ip = listOf("geoip:private")
+                outboundTag = "proxy-${index % 8}"
+            }
+        }
+    }
+}